@@ -11,18 +11,35 @@ package edu.up.campus.adlookup;
 
 import javax.naming.directory.*;
 import javax.naming.*;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ADLookup {
     public static final int DONT_EXPIRE_PASSWORD = 0x00010000;
+    //The most usernames findDistinguishedNames puts in one search filter
+    private static final int FILTER_USERS = 100;
     protected Hashtable<String, String> env;
     protected final String base;
-    //protected HashSet<String> suggestedUsers = new HashSet<>();
-    public ConcurrentSkipListSet<String> completedSearches = new ConcurrentSkipListSet<>();
-    //public ConcurrentSkipListMap<String,Integer> incompleteSearchStrings = new ConcurrentSkipListMap<>();
-    public ConcurrentSkipListMap<String,Boolean> incompleteSearches = new ConcurrentSkipListMap<>();
+    //Which usernames this user's browser already has
+    private SuggestionState suggestions;
+    //The same credentials on each search root, created on first use
+    private List<ADLookup> roots;
     
     public ADLookup(String domain, String username, String password, String baseStr, String serviceUser, String servicePass, String authGroup) throws Exception {
         //Initialize LDAP context hashtable with service account (insecurely)
@@ -56,7 +73,7 @@ public class ADLookup {
             Attributes attrs = answer.next().getAttributes();
             String distName = attrs.get("distinguishedName").get().toString();
             
-            NamingEnumeration groups = attrs.get("memberof").getAll();
+            NamingEnumeration<?> groups = attrs.get("memberof").getAll();
             
             boolean authenticated = false;
             //Check for membership in authorized group
@@ -71,21 +88,7 @@ public class ADLookup {
                 //System.out.println(username + " is authorized.");
                 ctx.close();
                 //Replace the service account's credentials with the user's credentials
-                env.remove(Context.SECURITY_PRINCIPAL);
-                env.remove(Context.SECURITY_CREDENTIALS);
-                env.put(Context.SECURITY_PRINCIPAL, distName);
-                env.put(Context.SECURITY_CREDENTIALS, password);
-                
-                //Use a pool of LDAP connections for efficiency
-                //Enable it after all the changes to the environment are done
-                env.put("com.sun.jndi.ldap.connect.pool", "true");
-                
-                //Remove a connection from the pool after 1 min
-                env.put("com.sun.jndi.ldap.connect.pool.timeout","60000");
-                
-                //Test credentials by binding with them
-                ctx = new InitialDirContext(env);
-                ctx.close();
+                bind(distName, password);
                 
                 //System.out.println("Password is correct.");
             }
@@ -100,13 +103,132 @@ public class ADLookup {
         
     }
 
+    /**
+     * Restores an ADLookup for a user that was already authorized, such as a
+     * login session loaded from a persistent session store. The credentials
+     * are still tested by binding with them.
+     * 
+     * @param  domain   the LDAP connection string
+     * @param  distName the distinguished name of the user
+     * @param  password the user's password
+     * @param  baseStr  the base distinguished name to search from
+     */
+    public ADLookup(String domain, String distName, String password, String baseStr) throws NamingException {
+        env = new Hashtable<String, String>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        env.put(Context.SECURITY_AUTHENTICATION, "simple");
+        env.put(Context.PROVIDER_URL, domain);
+        env.put("com.sun.jndi.ldap.connect.timeout", "500");
+        env.put("com.sun.jndi.ldap.read.timeout", "5000");
+        base = baseStr;
+        bind(distName, password);
+    }
+    
+    /**
+     * Copies a lookup's credentials to another search root, which can be on
+     * another domain controller. The credentials aren't tested again until
+     * the first search.
+     * 
+     * @param  other   the lookup to copy
+     * @param  domain  the LDAP connection string of the root
+     * @param  baseStr the base distinguished name of the root
+     */
+    private ADLookup(ADLookup other, String domain, String baseStr) {
+        env = new Hashtable<String, String>(other.env);
+        env.put(Context.PROVIDER_URL, domain);
+        base = baseStr;
+    }
+    
+    private void bind(String distName, String password) throws NamingException {
+        env.remove(Context.SECURITY_PRINCIPAL);
+        env.remove(Context.SECURITY_CREDENTIALS);
+        env.put(Context.SECURITY_PRINCIPAL, distName);
+        env.put(Context.SECURITY_CREDENTIALS, password);
+
+        //Use a pool of LDAP connections for efficiency
+        //Enable it after all the changes to the environment are done
+        env.put("com.sun.jndi.ldap.connect.pool", "true");
+
+        //Remove a connection from the pool after 1 min
+        env.put("com.sun.jndi.ldap.connect.pool.timeout","60000");
+
+        //Test credentials by binding with them
+        DirContext ctx = new InitialDirContext(env);
+        ctx.close();
+    }
+    
+    //Returns the search suggestion state, counting it against the budget when it is created
+    synchronized SuggestionState getSuggestions(SuggestionBudget budget) {
+        if (suggestions == null) {
+            suggestions = budget.newState();
+        }
+        return suggestions;
+    }
+    
+    //Returns a lookup for each search root, reusing this one for the root it already searches
+    synchronized List<ADLookup> onRoots(List<SearchRoots.Root> searchRoots) {
+        if (roots == null) {
+            List<ADLookup> lookups = new ArrayList<>(searchRoots.size());
+            for (SearchRoots.Root root : searchRoots) {
+                if (root.getConnectionStr().equals(env.get(Context.PROVIDER_URL)) && root.getBaseDN().equals(base)) {
+                    lookups.add(this);
+                }
+                else {
+                    lookups.add(new ADLookup(this, root.getConnectionStr(), root.getBaseDN()));
+                }
+            }
+            roots = lookups;
+        }
+        return roots;
+    }
+    
+    //The distinguished name this lookup binds as
+    String getPrincipal() {
+        return env.get(Context.SECURITY_PRINCIPAL);
+    }
+    
+    //The password this lookup binds with
+    String getCredentials() {
+        return env.get(Context.SECURITY_CREDENTIALS);
+    }
+
+    /**
+     * Reads some attributes of a user. Only the requested attributes are sent
+     * by the domain controller, so large ones like memberOf should only be
+     * asked for when they are needed.
+     * 
+     * @param  attributes the attributes to read
+     * @param  user       the sAMAccountName of the user
+     * @return            the values in the same order as attributes, or null if the user wasn't found or the search failed
+     */
     public String[] search(String[] attributes, String user) {
         try {
-            //Create a new context to avoid timeout error
-            DirContext ctx = new InitialDirContext(env);
+            return searchOrThrow(attributes, user);
+        } catch (NamingException e) {
+            System.err.println("NamingException when searching. " + e);
+        } catch (NullPointerException e) {
+            System.err.println("Couldn't initialize LDAP context. " + e);
+        }
+        return null;
+    }
+    
+    /**
+     * Reads some attributes of a user like search, but throws when the domain
+     * controller can't be reached so callers can tell an outage from a user
+     * that doesn't exist.
+     * 
+     * @param  attributes the attributes to read
+     * @param  user       the sAMAccountName of the user
+     * @return            the values in the same order as attributes, or null if the user wasn't found
+     */
+    public String[] searchOrThrow(String[] attributes, String user) throws NamingException {
+        //Create a new context to avoid timeout error
+        DirContext ctx = new InitialDirContext(env);
+        try {
             //Execute search
             SearchControls searchCtls = new SearchControls();
             searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            searchCtls.setReturningAttributes(attributes);
             String filter = "(&(objectClass=user)(sAMAccountName=" + escapeLDAPSearchFilter(user) + "))";
             NamingEnumeration<SearchResult> answer = ctx.search(base, filter, searchCtls);
             if (answer.hasMoreElements()) {
@@ -120,7 +242,7 @@ public class ADLookup {
                 for (int i = 0; i < attributes.length; i++) {
                     results[i] = "";
                     if (attrs.get(attributes[i]) != null) {
-                        NamingEnumeration groups = attrs.get(attributes[i]).getAll();
+                        NamingEnumeration<?> groups = attrs.get(attributes[i]).getAll();
                         while (groups.hasMore()) {
                             results[i] += groups.next().toString()+"\n";
                         }
@@ -133,18 +255,283 @@ public class ADLookup {
                         //System.out.println(attributes[i]+":"+results[i]);
                     }
                 }
+                return results;
+            }
+            return null;
+        } finally {
+            //Close connection to save resources on the domain controller
+            ctx.close();
+        }
+    }
+    
+    /**
+     * Searches with the paged results control so a large directory is read one
+     * page at a time. Each page is passed to the handler as soon as it arrives
+     * and is not kept afterwards.
+     * 
+     * @param  filter     the LDAP search filter
+     * @param  attributes the attributes to read for each entry
+     * @param  pageSize   the number of entries to request per page
+     * @param  handler    receives each page of results
+     * @return            the number of entries read
+     */
+    public int searchPaged(String filter, String[] attributes, int pageSize, PageHandler handler) throws NamingException {
+        LdapContext ctx = new InitialLdapContext(env, null);
+        int total = 0;
+        try {
+            SearchControls searchCtls = new SearchControls();
+            searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            searchCtls.setReturningAttributes(attributes);
+            byte[] cookie = null;
+            do {
+                ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+                NamingEnumeration<SearchResult> answer = ctx.search(base, filter, searchCtls);
+                List<String[]> page = new ArrayList<>(pageSize);
+                while (answer.hasMore()) {
+                    page.add(readAttributes(answer.next().getAttributes(), attributes));
+                }
+                total += page.size();
                 
-                //Close connection to save resources on the domain controller
+                //Let the handler stop early, such as when the client disconnected
+                if(!handler.handlePage(page)) {
+                    break;
+                }
+                
+                //An empty cookie means this was the last page
+                cookie = null;
+                Control[] controls = ctx.getResponseControls();
+                if (controls != null) {
+                    for (Control control : controls) {
+                        if (control instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) control).getCookie();
+                        }
+                    }
+                }
+            } while (cookie != null && cookie.length > 0);
+        } catch (IOException e) {
+            throw new NamingException("Couldn't encode paged results control. " + e);
+        } finally {
+            ctx.close();
+        }
+        return total;
+    }
+    
+    /**
+     * Searches with extra request controls, such as server side sorting or a
+     * virtual list view, and collects the controls the domain controller sent
+     * back with the results.
+     * 
+     * @param  filter           the LDAP search filter
+     * @param  attributes       the attributes to read for each entry
+     * @param  requestControls  the controls to send with the search
+     * @param  responseControls receives the controls sent back
+     * @return                  the entries in the order the domain controller returned them
+     */
+    public List<String[]> searchWithControls(String filter, String[] attributes, Control[] requestControls, List<Control> responseControls) throws NamingException {
+        LdapContext ctx = new InitialLdapContext(env, null);
+        try {
+            ctx.setRequestControls(requestControls);
+            SearchControls searchCtls = new SearchControls();
+            searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            searchCtls.setReturningAttributes(attributes);
+            NamingEnumeration<SearchResult> answer = ctx.search(base, filter, searchCtls);
+            List<String[]> results = new ArrayList<>();
+            while (answer.hasMore()) {
+                results.add(readAttributes(answer.next().getAttributes(), attributes));
+            }
+            
+            //Response controls are only available after every result was read
+            Control[] controls = ctx.getResponseControls();
+            if (controls != null) {
+                for (Control control : controls) {
+                    responseControls.add(control);
+                }
+            }
+            return results;
+        } finally {
+            ctx.close();
+        }
+    }
+    
+    //Joins multi-valued attributes with newlines like search does
+    private static String[] readAttributes(Attributes attrs, String[] attributes) throws NamingException {
+        String[] results = new String[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            results[i] = "";
+            Attribute attr = attrs == null ? null : attrs.get(attributes[i]);
+            if (attr != null) {
+                StringBuilder builder = new StringBuilder();
+                NamingEnumeration<?> values = attr.getAll();
+                while (values.hasMore()) {
+                    if (builder.length() > 0) {
+                        builder.append('\n');
+                    }
+                    builder.append(values.next().toString());
+                }
+                results[i] = builder.toString();
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Opens several connections at once and closes them so they are left
+     * waiting in the LDAP connection pool.
+     * 
+     * @param  count the number of connections to open
+     */
+    public void openConnections(int count) throws NamingException {
+        List<DirContext> contexts = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                contexts.add(new InitialDirContext(env));
+            }
+        } finally {
+            for (DirContext ctx : contexts) {
                 ctx.close();
-                return results;
             }
+        }
+    }
+    
+    /**
+     * Reads every value of one attribute of an entry.
+     * 
+     * @param  distName  the distinguished name of the entry
+     * @param  attribute the attribute to read
+     * @return           the attribute's values, which is empty if it isn't set
+     */
+    public List<String> readAttribute(String distName, String attribute) throws NamingException {
+        DirContext ctx = new InitialDirContext(env);
+        try {
+            List<String> values = new ArrayList<>();
+            Attribute attr = ctx.getAttributes(new LdapName(distName), new String[]{attribute}).get(attribute);
+            if (attr != null) {
+                NamingEnumeration<?> all = attr.getAll();
+                while (all.hasMore()) {
+                    values.add(all.next().toString());
+                }
+            }
+            return values;
+        } finally {
             ctx.close();
-        } catch (NamingException e) {
-            System.err.println("NamingException when searching. " + e);
-        } catch (NullPointerException e) {
-            System.err.println("Couldn't initialize LDAP context. " + e);
         }
-        return null;
+    }
+    
+    /**
+     * Reads an attribute of the domain controller's root DSE, such as
+     * highestCommittedUSN.
+     * 
+     * @param  attribute the attribute to read
+     * @return           the attribute's value or null if it isn't set
+     */
+    public String getRootAttribute(String attribute) throws NamingException {
+        DirContext ctx = new InitialDirContext(env);
+        try {
+            Attribute attr = ctx.getAttributes("", new String[]{attribute}).get(attribute);
+            return attr == null ? null : attr.get().toString();
+        } finally {
+            ctx.close();
+        }
+    }
+    
+    public interface PageHandler {
+        //Return false to stop reading pages
+        boolean handlePage(List<String[]> page);
+    }
+    
+    /**
+     * Finds the distinguished names of many users with a paged search for
+     * every FILTER_USERS of them, so the filter stays a reasonable size.
+     * 
+     * @param  usernames the sAMAccountNames to find
+     * @param  pageSize  the number of entries to request per page
+     * @return           the distinguished names by lowercase sAMAccountName
+     */
+    public Map<String,String> findDistinguishedNames(Collection<String> usernames, int pageSize) throws NamingException {
+        Map<String,String> distNames = new HashMap<>();
+        List<String> remaining = new ArrayList<>(usernames);
+        for (int start = 0; start < remaining.size(); start += FILTER_USERS) {
+            StringBuilder filter = new StringBuilder("(&(objectClass=user)(|");
+            for (String username : remaining.subList(start, Math.min(start+FILTER_USERS, remaining.size()))) {
+                filter.append("(sAMAccountName=").append(escapeLDAPSearchFilter(username)).append(")");
+            }
+            filter.append("))");
+            searchPaged(filter.toString(), new String[]{"sAMAccountName", "distinguishedName"}, pageSize, (page) -> {
+                for (String[] entry : page) {
+                    distNames.put(entry[0].toLowerCase(Locale.ROOT), entry[1]);
+                }
+                return true;
+            });
+        }
+        return distNames;
+    }
+    
+    /**
+     * Applies the same modification to many entries. The entries are shared
+     * by a few connections that run in parallel, and each connection modifies
+     * its entries one at a time. The calling thread works through the list
+     * too, so this finishes even if the executor has no free threads or
+     * rejects the other connections.
+     * 
+     * @param  distNames   the distinguished names of the entries to modify
+     * @param  mod         the modification to apply to each entry
+     * @param  parallelism the most modifications to have in flight at once
+     * @param  executor    runs the additional connections
+     * @param  handler     receives the result of each modification
+     */
+    public void modifyAll(Collection<String> distNames, ModificationItem[] mod, int parallelism, Executor executor, ModifyHandler handler) throws InterruptedException {
+        ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>(distNames);
+        CountDownLatch finished = new CountDownLatch(distNames.size());
+        Runnable worker = () -> {
+            DirContext ctx = null;
+            try {
+                for (String distName = pending.poll(); distName != null; distName = pending.poll()) {
+                    NamingException error = null;
+                    try {
+                        if (ctx == null) {
+                            ctx = new InitialDirContext(env);
+                        }
+                        ctx.modifyAttributes(distName, mod);
+                    } catch (NamingException e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        //Report it like a failed modification so the rest of the entries are still tried
+                        error = new NamingException(e.toString());
+                        error.setRootCause(e);
+                    }
+                    try {
+                        handler.modified(distName, error);
+                    } catch (RuntimeException e) {
+                        System.err.println("Exception when handling modification of " + distName + ". " + e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            } finally {
+                if (ctx != null) {
+                    try {
+                        ctx.close();
+                    } catch (NamingException e) {
+                        System.err.println("NamingException when closing context. " + e);
+                    }
+                }
+            }
+        };
+        for (int i = 1; i < parallelism && i < distNames.size(); i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                //The calling thread modifies whatever the other connections don't
+                break;
+            }
+        }
+        worker.run();
+        finished.await();
+    }
+    
+    public interface ModifyHandler {
+        //The error is null if the modification succeeded
+        void modified(String distName, NamingException error);
     }
     
     public boolean setAttrib(String name, String attrib, String setting) {
@@ -155,13 +542,26 @@ public class ADLookup {
         try {
             //Create a new context to avoid timeout error
             DirContext ctx = new InitialDirContext(env);
-            
-            //Search for the user's distinguished name
-            String[] results = this.search(new String[]{"distinguishedName"}, name);
-            
-            //Modify the user's attribute
-            ctx.modifyAttributes(results[0], mod);
-            return true;
+            try {
+                //Search for only the user's distinguished name on the same connection
+                SearchControls searchCtls = new SearchControls();
+                searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+                searchCtls.setReturningAttributes(new String[]{"distinguishedName"});
+                String filter = "(&(objectClass=user)(sAMAccountName=" + escapeLDAPSearchFilter(name) + "))";
+                NamingEnumeration<SearchResult> answer = ctx.search(base, filter, searchCtls);
+                if (!answer.hasMore()) {
+                    System.err.println("Couldn't find " + name + " to modify " + attrib + ".");
+                    return false;
+                }
+                String distName = answer.next().getAttributes().get("distinguishedName").get().toString();
+                answer.close();
+                
+                //Modify the user's attribute
+                ctx.modifyAttributes(distName, mod);
+                return true;
+            } finally {
+                ctx.close();
+            }
         } catch (NamingException e) {
             System.err.println("NamingException when modifying " + attrib +". "+ e);
         } catch (NullPointerException e) {
@@ -170,6 +570,26 @@ public class ADLookup {
         return false;
     }
     
+    /**
+     * Replaces one attribute of an entry that was already found, without
+     * searching for it again.
+     * 
+     * @param  distName the distinguished name of the entry
+     * @param  attrib   the attribute to replace
+     * @param  setting  the new value
+     */
+    public void replaceAttribute(String distName, String attrib, String setting) throws NamingException {
+        ModificationItem[] mod = new ModificationItem[]{
+            new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(attrib, setting))
+        };
+        DirContext ctx = new InitialDirContext(env);
+        try {
+            ctx.modifyAttributes(new LdapName(distName), mod);
+        } finally {
+            ctx.close();
+        }
+    }
+    
     //https://www.owasp.org/index.php/Preventing_LDAP_Injection_in_Java
     public static String escapeLDAPSearchFilter(String filter) {
        StringBuilder sb = new StringBuilder();
@@ -0,0 +1,58 @@
+/*
+ * AuditEvent records who did what to which account and whether it worked.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+public class AuditEvent {
+    private final long time;
+    private final String action;
+    private final String actor;
+    private final String target;
+    private final boolean success;
+    private final String detail;
+
+    /**
+     * Constructor for AuditEvent. The time is when it was created.
+     *
+     * @param  action  what was done, such as login, userinfo, or unlock
+     * @param  actor   the user who did it
+     * @param  target  the account it was done to, or an empty string
+     * @param  success whether it worked
+     * @param  detail  why it failed or how it was done, or an empty string
+     */
+    public AuditEvent(String action, String actor, String target, boolean success, String detail) {
+        this.time = System.currentTimeMillis();
+        this.action = action;
+        this.actor = actor == null ? "" : actor;
+        this.target = target == null ? "" : target;
+        this.success = success;
+        this.detail = detail == null ? "" : detail;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getActor() {
+        return actor;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * AuditLog records AuditEvents without slowing down the request that caused
+ * them. Events go into a fixed size ring buffer without taking a lock, and a
+ * single writer thread stores them in batches. When the buffer is full, new
+ * events are dropped and counted instead of making the request wait.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class AuditLog {
+    private final AuditSink sink;
+
+    //Events waiting to be written. The size is a power of two so a sequence maps to a slot with a mask
+    private final AtomicReferenceArray<AuditEvent> slots;
+    private final int mask;
+
+    //The next sequence number to claim and the next one to write
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0;
+
+    //The most events to store at once
+    private final int batchSize;
+
+    //The number of nanoseconds to wait for more events before writing a partial batch
+    private final long flushNanos;
+
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Constructor for AuditLog. Starts the writer thread.
+     *
+     * @param  sink          where to store events
+     * @param  capacity      the number of events that can wait to be written, rounded up to a power of two
+     * @param  batchSize     the most events to store at once
+     * @param  flushMillis   the number of milliseconds to wait for more events before storing a partial batch
+     * @param  threadFactory creates the writer thread
+     */
+    public AuditLog(AuditSink sink, int capacity, int batchSize, long flushMillis, ThreadFactory threadFactory) {
+        this.sink = sink;
+        int size = Integer.highestOneBit(Math.max(capacity-1, 1))*2;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size-1;
+        this.batchSize = batchSize;
+        flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        writer = threadFactory.newThread(this::writeLoop);
+        writer.setName("audit-writer");
+        writer.start();
+    }
+
+    /**
+     * Adds an event to the buffer without blocking.
+     *
+     * @param  event the event to record
+     * @return       false if the buffer was full and the event was dropped
+     */
+    public boolean record(AuditEvent event) {
+        long seq;
+        do {
+            seq = head.get();
+            if(seq-tail >= slots.length() || !running) {
+                dropped.increment();
+                return false;
+            }
+        } while(!head.compareAndSet(seq, seq+1));
+        slots.set((int)seq & mask, event);
+
+        //Wake the writer early once a full batch is waiting
+        if(seq-tail == batchSize) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    //The number of events waiting to be written
+    public long getBacklog() {
+        return head.get()-tail;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    //The number of events lost because the sink failed
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Writes the events already in the buffer and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        sink.close();
+    }
+
+    private void writeLoop() {
+        List<AuditEvent> batch = new ArrayList<>(batchSize);
+        int idle = 0;
+        while(true) {
+            //Take events in order until reaching one that was claimed but isn't there yet
+            long end = head.get();
+            long next = tail;
+            while(next < end && batch.size() < batchSize) {
+                int slot = (int)next & mask;
+                AuditEvent event = slots.get(slot);
+                if(event == null) {
+                    break;
+                }
+                slots.set(slot, null);
+                batch.add(event);
+                next++;
+
+                //Free the slot for producers only after it is cleared
+                tail = next;
+            }
+            if(!batch.isEmpty()) {
+                try {
+                    sink.write(batch);
+                    written.addAndGet(batch.size());
+                } catch(Exception ex) {
+                    failed.addAndGet(batch.size());
+                    System.err.println("Couldn't write "+batch.size()+" audit events. "+ex);
+                }
+                batch.clear();
+                idle = 0;
+            }
+
+            //After closing, don't wait long for an event that was claimed but never added
+            if(!running && (head.get() == tail || ++idle > 100)) {
+                return;
+            }
+
+            //Group the next events into one write unless a full batch is already waiting
+            if(head.get()-tail < batchSize) {
+                LockSupport.parkNanos(this, running ? flushNanos : TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+}
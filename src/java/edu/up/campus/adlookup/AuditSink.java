@@ -0,0 +1,25 @@
+/*
+ * AuditSink stores batches of AuditEvents. It is only called from the audit
+ * writer thread, so implementations don't need to be thread safe.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+public interface AuditSink {
+
+    /**
+     * Stores a batch of events. The events are durable when this returns.
+     *
+     * @param  events the events in the order they were recorded
+     */
+    void write(List<AuditEvent> events) throws IOException, SQLException;
+
+    //Release any resources held by the sink
+    void close();
+}
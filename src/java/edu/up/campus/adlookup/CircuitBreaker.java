@@ -0,0 +1,131 @@
+/*
+ * CircuitBreaker stops sending requests to a backend that keeps failing, so
+ * executor threads don't all wait on connection and read timeouts during an
+ * outage. After a number of failures in a row it opens and requests fail
+ * right away. Once the open time has passed, a single request is let through
+ * to probe the backend, and the breaker closes again if it works.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    //The number of transitions kept for the status page
+    private static final int HISTORY = 10;
+
+    private final String name;
+
+    //The number of failures in a row that open the breaker
+    private final int failureThreshold;
+
+    //The number of milliseconds to fail fast before probing again
+    private final long openTime;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+    private long probeAt = 0;
+    private long transitions = 0;
+    private long rejected = 0;
+    private final ArrayDeque<String> history = new ArrayDeque<>();
+
+    /**
+     * Constructor for CircuitBreaker.
+     *
+     * @param  name             the backend's name for logs and the status page
+     * @param  failureThreshold the number of failures in a row that open the breaker
+     * @param  openTime         the number of milliseconds to fail fast before probing again
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openTime) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Returns true if a request may be sent to the backend. Every allowed
+     * request must be followed by recordSuccess or recordFailure, because the
+     * first request after the open time is the probe.
+     */
+    public synchronized boolean allowRequest() {
+        if(state == State.CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if(state == State.OPEN && now-openedAt >= openTime) {
+            transition(State.HALF_OPEN);
+            probeAt = now;
+            return true;
+        }
+
+        //Send another probe if the last one never reported back
+        if(state == State.HALF_OPEN && now-probeAt >= openTime) {
+            probeAt = now;
+            return true;
+        }
+
+        //Either still open or a probe is already running
+        rejected++;
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        if(state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        if(state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            openedAt = System.currentTimeMillis();
+            transition(State.OPEN);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized long getTransitions() {
+        return transitions;
+    }
+
+    //The number of requests failed fast instead of sent to the backend
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    //The most recent transitions, oldest first
+    public synchronized List<String> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    private void transition(State newState) {
+        String change = new Date()+": "+state+" -> "+newState;
+        System.out.println("Circuit breaker "+name+" "+change+" after "+failures+" failures in a row.");
+        state = newState;
+        transitions++;
+        history.addLast(change);
+        if(history.size() > HISTORY) {
+            history.removeFirst();
+        }
+    }
+}
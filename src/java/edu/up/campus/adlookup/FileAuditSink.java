@@ -0,0 +1,120 @@
+/*
+ * FileAuditSink appends AuditEvents to local files as one JSON object per
+ * line. Each batch is written with a single write and synced once. A new file
+ * is started every day and whenever the current one reaches its size limit.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import javax.json.Json;
+
+public class FileAuditSink implements AuditSink {
+    private final Path directory;
+
+    //The number of bytes after which a new file is started
+    private final long maxBytes;
+
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+    //The file being appended to, its day, its number within the day, and its size
+    private FileChannel channel;
+    private String day;
+    private int part;
+    private long size;
+
+    /**
+     * Constructor for FileAuditSink. Creates the directory if it doesn't exist.
+     *
+     * @param  directory where to keep the audit files
+     * @param  maxBytes  the size at which to start a new file
+     */
+    public FileAuditSink(String directory, long maxBytes) throws IOException {
+        this.directory = Paths.get(directory);
+        this.maxBytes = maxBytes;
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Files.createDirectories(this.directory);
+    }
+
+    @Override
+    public void write(List<AuditEvent> events) throws IOException {
+        StringBuilder lines = new StringBuilder(events.size()*160);
+        for(AuditEvent event : events) {
+            lines.append(Json.createObjectBuilder()
+                    .add("time", timeFormat.format(new Date(event.getTime())))
+                    .add("action", event.getAction())
+                    .add("actor", event.getActor())
+                    .add("target", event.getTarget())
+                    .add("success", event.isSuccess())
+                    .add("detail", event.getDetail())
+                    .build()
+                    .toString())
+                 .append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        rotate(buffer.remaining());
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        //One sync per batch instead of one per event
+        channel.force(false);
+        size += buffer.limit();
+    }
+
+    @Override
+    public void close() {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch(IOException ex) {
+                System.out.println("Couldn't close audit file. "+ex);
+            }
+            channel = null;
+        }
+    }
+
+    //Opens the file the next bytes belong in
+    private void rotate(int length) throws IOException {
+        String today = dayFormat.format(new Date());
+        if(channel != null && today.equals(day) && (size == 0 || size+length <= maxBytes)) {
+            return;
+        }
+        if(!today.equals(day)) {
+            day = today;
+            part = 0;
+        }
+        else if(channel != null) {
+            part++;
+        }
+        close();
+
+        //Continue a file left from before a restart if it still has room
+        Path file = directory.resolve(fileName(day, part));
+        while(Files.exists(file) && Files.size(file)+length > maxBytes) {
+            part++;
+            file = directory.resolve(fileName(day, part));
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+    }
+
+    private static String fileName(String day, int part) {
+        return part == 0 ? "audit-"+day+".log" : "audit-"+day+"."+part+".log";
+    }
+}
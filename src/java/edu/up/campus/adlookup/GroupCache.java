@@ -0,0 +1,203 @@
+/*
+ * GroupCache turns group distinguished names into short names for display.
+ * Every group is parsed once and shared by all lookups. It can also show the
+ * groups a user is in through nested membership. Each group's parents are read
+ * once and kept for a while, so a lookup only reads from the cache.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.naming.NamingException;
+
+public class GroupCache {
+    private static final Group[] NO_GROUPS = new Group[0];
+    
+    //Every group seen so far by distinguished name
+    private final Map<String,Group> groups = new ConcurrentHashMap<>();
+    
+    //The number of milliseconds before a group's parents are read again
+    private final long ttl;
+    
+    public GroupCache(long ttl) {
+        this.ttl = ttl;
+    }
+    
+    /**
+     * Returns the groups in a memberOf value as an HTML list of short names.
+     * Groups inherited through nested membership are added in italics after
+     * the direct groups when a lookup is given.
+     * 
+     * @param  memberOf the newline separated group distinguished names
+     * @param  query    the lookup used to read parents missing from the cache, or null to skip nested groups
+     * @return          the HTML list of group names
+     */
+    public String render(String memberOf, ADLookup query) {
+        if(memberOf == null || memberOf.isEmpty() || "N/A".equals(memberOf)) {
+            return "N/A";
+        }
+        StringBuilder builder = new StringBuilder();
+        List<Group> direct = new ArrayList<>();
+        int start = 0;
+        while(start < memberOf.length()) {
+            int end = memberOf.indexOf('\n', start);
+            if(end < 0) {
+                end = memberOf.length();
+            }
+            if(end > start) {
+                Group group = get(memberOf.substring(start, end));
+                direct.add(group);
+                builder.append(group.name)
+                       .append("<br/>");
+            }
+            start = end+1;
+        }
+        if(query != null) {
+            Set<Group> seen = new LinkedHashSet<>(direct);
+            for(Group group : direct) {
+                for(Group ancestor : ancestors(group, query)) {
+                    if(seen.add(ancestor)) {
+                        builder.append("<i>")
+                               .append(ancestor.name)
+                               .append("</i><br/>");
+                    }
+                }
+            }
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Reads the parents of every group with one paged search so later lookups
+     * don't have to read them one at a time.
+     * 
+     * @param  query    the lookup to search with
+     * @param  pageSize the number of entries to request per page
+     * @return          the number of groups read
+     */
+    public int preload(ADLookup query, int pageSize) throws NamingException {
+        return query.searchPaged("(objectClass=group)", new String[]{"distinguishedName", "memberOf"}, pageSize, (page) -> {
+            long now = System.currentTimeMillis();
+            for(String[] entry : page) {
+                Group group = get(entry[0]);
+                group.parents = toGroups(entry[1]);
+                group.parentsLoaded = now;
+            }
+            return true;
+        });
+    }
+    
+    public int size() {
+        return groups.size();
+    }
+    
+    private Group get(String distName) {
+        Group group = groups.get(distName);
+        if(group == null) {
+            group = groups.computeIfAbsent(distName, Group::new);
+        }
+        return group;
+    }
+    
+    //Returns every group this group is nested in, directly or not
+    private Group[] ancestors(Group group, ADLookup query) {
+        long now = System.currentTimeMillis();
+        Group[] ancestors = group.ancestors;
+        if(ancestors != null && now - group.ancestorsLoaded < ttl) {
+            return ancestors;
+        }
+        Set<Group> found = new LinkedHashSet<>();
+        Deque<Group> pending = new ArrayDeque<>();
+        pending.add(group);
+        while(!pending.isEmpty()) {
+            for(Group parent : parents(pending.poll(), query, now)) {
+                //Groups can be nested in a loop
+                if(parent != group && found.add(parent)) {
+                    pending.add(parent);
+                }
+            }
+        }
+        ancestors = found.toArray(NO_GROUPS);
+        group.ancestors = ancestors;
+        group.ancestorsLoaded = now;
+        return ancestors;
+    }
+    
+    private Group[] parents(Group group, ADLookup query, long now) {
+        Group[] parents = group.parents;
+        if(parents != null && now - group.parentsLoaded < ttl) {
+            return parents;
+        }
+        try {
+            parents = toGroups(String.join("\n", query.readAttribute(group.distName, "memberOf")));
+        } catch(NamingException e) {
+            System.err.println("NamingException when reading parents of " + group.distName + ". " + e);
+            
+            //Try again on the next lookup
+            return parents == null ? NO_GROUPS : parents;
+        }
+        group.parents = parents;
+        group.parentsLoaded = now;
+        return parents;
+    }
+    
+    private Group[] toGroups(String memberOf) {
+        if(memberOf == null || memberOf.isEmpty()) {
+            return NO_GROUPS;
+        }
+        String[] distNames = memberOf.split("\n");
+        Group[] result = new Group[distNames.length];
+        for(int i = 0; i < distNames.length; i++) {
+            result[i] = get(distNames[i]);
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the common name of a distinguished name, such as Admins for
+     * CN=Admins,CN=Users,DC=example,DC=com.
+     */
+    static String commonName(String distName) {
+        if(!distName.regionMatches(true, 0, "CN=", 0, 3)) {
+            return distName;
+        }
+        StringBuilder builder = new StringBuilder();
+        for(int i = 3; i < distName.length(); i++) {
+            char c = distName.charAt(i);
+            if(c == '\\' && i+1 < distName.length()) {
+                //Keep escaped characters like \, without the backslash
+                builder.append(distName.charAt(++i));
+            }
+            else if(c == ',') {
+                break;
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+    
+    private static class Group {
+        final String distName;
+        final String name;
+        volatile Group[] parents;
+        volatile long parentsLoaded;
+        volatile Group[] ancestors;
+        volatile long ancestorsLoaded;
+        
+        Group(String distName) {
+            this.distName = distName;
+            this.name = commonName(distName);
+        }
+    }
+}
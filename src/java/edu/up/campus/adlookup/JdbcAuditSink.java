@@ -0,0 +1,124 @@
+/*
+ * JdbcAuditSink inserts AuditEvents into a database table. Each batch is
+ * inserted with one batched statement in a single transaction.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import javax.sql.DataSource;
+
+public class JdbcAuditSink implements AuditSink {
+    private static final String CREATE_TABLE = "CREATE TABLE audit_log ("
+            + "time BIGINT NOT NULL, "
+            + "action VARCHAR(32) NOT NULL, "
+            + "actor VARCHAR(512) NOT NULL, "
+            + "target VARCHAR(256) NOT NULL, "
+            + "success SMALLINT NOT NULL, "
+            + "detail VARCHAR(512) NOT NULL)";
+
+    //Audits are usually read by time range
+    private static final String CREATE_INDEX = "CREATE INDEX audit_log_time ON audit_log (time)";
+
+    private static final String INSERT_EVENT = "INSERT INTO audit_log (time, action, actor, target, success, detail) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final DataSource ds;
+
+    /**
+     * Constructor for JdbcAuditSink. Creates the audit_log table and its index
+     * if they don't exist yet.
+     *
+     * @param  ds the database holding the audit_log table
+     */
+    public JdbcAuditSink(DataSource ds) throws SQLException {
+        this.ds = ds;
+        try(Connection conn = ds.getConnection(); Statement stmt = conn.createStatement()) {
+            if(!tableExists(conn)) {
+                try {
+                    stmt.executeUpdate(CREATE_TABLE);
+                    System.out.println("Created audit_log table.");
+                } catch(SQLException ex) {
+                    System.err.println("Couldn't create audit_log table. "+ex);
+                }
+            }
+
+            //Created on its own so a table from before the index existed gets it too
+            if(!indexExists(conn)) {
+                try {
+                    stmt.executeUpdate(CREATE_INDEX);
+                } catch(SQLException ex) {
+                    System.err.println("Couldn't create audit_log_time index. "+ex);
+                }
+            }
+        }
+    }
+
+    private static boolean tableExists(Connection conn) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        //Databases store unquoted names in upper or lower case
+        for(String name : new String[]{"audit_log", "AUDIT_LOG"}) {
+            try(ResultSet tables = meta.getTables(null, null, name, null)) {
+                if(tables.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean indexExists(Connection conn) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for(String name : new String[]{"audit_log", "AUDIT_LOG"}) {
+            try(ResultSet indexes = meta.getIndexInfo(null, null, name, false, false)) {
+                while(indexes.next()) {
+                    if("audit_log_time".equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void write(List<AuditEvent> events) throws SQLException {
+        try(Connection conn = ds.getConnection()) {
+            conn.setAutoCommit(false);
+            try(PreparedStatement stmt = conn.prepareStatement(INSERT_EVENT)) {
+                for(AuditEvent event : events) {
+                    stmt.setLong(1, event.getTime());
+                    stmt.setString(2, event.getAction());
+                    stmt.setString(3, truncate(event.getActor(), 512));
+                    stmt.setString(4, truncate(event.getTarget(), 256));
+                    stmt.setShort(5, (short)(event.isSuccess() ? 1 : 0));
+                    stmt.setString(6, truncate(event.getDetail(), 512));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+            } catch(SQLException ex) {
+                conn.rollback();
+                throw ex;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        //Connections are returned to the pool after every batch
+    }
+
+    private static String truncate(String value, int length) {
+        return value.length() <= length ? value : value.substring(0, length);
+    }
+}
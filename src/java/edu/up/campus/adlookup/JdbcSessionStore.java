@@ -0,0 +1,338 @@
+/*
+ * JdbcSessionStore keeps LoginSessions in a database table so they survive a
+ * redeploy and can be shared by several app servers behind a load balancer.
+ * The user's password is encrypted with AES-GCM before it is stored. Recently
+ * used sessions are kept in a local cache, and keepalives only update the
+ * expiration time in memory until the next batched write.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import net.jodah.expiringmap.ExpiringMap;
+import net.jodah.expiringmap.ExpiringMap.ExpirationPolicy;
+
+public class JdbcSessionStore implements SessionStore {
+    private static final String CREATE_TABLE = "CREATE TABLE login_sessions ("
+            + "token VARCHAR(64) NOT NULL PRIMARY KEY, "
+            + "principal VARCHAR(512) NOT NULL, "
+            + "iv VARBINARY(12) NOT NULL, "
+            + "credentials VARBINARY(1024) NOT NULL, "
+            + "expires BIGINT NOT NULL)";
+
+    //Expired sessions are deleted with a range scan on this index
+    private static final String CREATE_INDEX = "CREATE INDEX login_sessions_expires ON login_sessions (expires)";
+
+    private static final String SELECT_SESSION = "SELECT principal, iv, credentials FROM login_sessions WHERE token = ? AND expires > ?";
+    private static final String SESSION_EXISTS = "SELECT 1 FROM login_sessions WHERE token = ? AND expires > ?";
+    private static final String INSERT_SESSION = "INSERT INTO login_sessions (token, principal, iv, credentials, expires) VALUES (?, ?, ?, ?, ?)";
+    private static final String UPDATE_SESSION = "UPDATE login_sessions SET principal = ?, iv = ?, credentials = ?, expires = ? WHERE token = ?";
+    private static final String TOUCH_SESSION = "UPDATE login_sessions SET expires = ? WHERE token = ? AND expires > ?";
+    private static final String DELETE_SESSION = "DELETE FROM login_sessions WHERE token = ?";
+    private static final String DELETE_EXPIRED = "DELETE FROM login_sessions WHERE expires < ?";
+
+    //AES-GCM uses a 96 bit IV and a 128 bit authentication tag
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    private final DataSource ds;
+
+    //Used to rebuild an ADLookup from a stored session
+    private final String connectionStr;
+    private final String baseDN;
+
+    //The number of milliseconds before an unused LoginSession expires
+    private final long timeout;
+
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+
+    //Sessions used recently on this app server
+    private final Map<String,LoginSession> nearCache;
+
+    //New expiration times waiting to be written to the database
+    private final ConcurrentHashMap<String,Long> pendingTouches = new ConcurrentHashMap<>();
+
+    private final ScheduledFuture<?> flushTask;
+    private final ScheduledFuture<?> purgeTask;
+
+    /**
+     * Constructor for JdbcSessionStore. Creates the login_sessions table if it
+     * doesn't exist yet.
+     *
+     * @param  ds            the database holding the login_sessions table
+     * @param  ses           runs the batched writes and the expired session cleanup
+     * @param  connectionStr the LDAP connection string
+     * @param  baseDN        the base distinguished name of the domain
+     * @param  timeout       the number of milliseconds before an unused LoginSession expires
+     * @param  cacheTimeout  the number of milliseconds to keep an unused LoginSession in the local cache
+     * @param  flushInterval the number of milliseconds between batched writes of access times
+     * @param  keyBytes      the AES key shared by every app server to encrypt passwords
+     */
+    public JdbcSessionStore(DataSource ds, ScheduledExecutorService ses, String connectionStr, String baseDN,
+            long timeout, long cacheTimeout, long flushInterval, byte[] keyBytes) throws SQLException, GeneralSecurityException {
+        this.ds = ds;
+        this.connectionStr = connectionStr;
+        this.baseDN = baseDN;
+        this.timeout = timeout;
+
+        //A generated key would make every stored session unreadable after a restart
+        if(keyBytes == null || (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32)) {
+            throw new InvalidKeyException("The session key must be a 128, 192, or 256 bit AES key");
+        }
+        key = new SecretKeySpec(keyBytes, "AES");
+
+        nearCache = ExpiringMap.builder()
+            .expiration(cacheTimeout, TimeUnit.MILLISECONDS)
+            .expirationPolicy(ExpirationPolicy.ACCESSED)
+            .build();
+
+        try(Connection conn = ds.getConnection(); Statement stmt = conn.createStatement()) {
+            try {
+                stmt.executeUpdate(CREATE_TABLE);
+                System.out.println("Created login_sessions table.");
+            } catch(SQLException ex) {
+                //The table already exists
+            }
+
+            //Created on its own so a table from before the index existed gets it too
+            try {
+                stmt.executeUpdate(CREATE_INDEX);
+            } catch(SQLException ex) {
+                //Usually because it already exists, but otherwise purging expired sessions scans the table
+                System.out.println("Didn't create login_sessions_expires index. "+ex.getMessage());
+            }
+        }
+
+        flushTask = ses.scheduleWithFixedDelay(this::flushTouches, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        purgeTask = ses.scheduleWithFixedDelay(this::purgeExpired, cacheTimeout, cacheTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public LoginSession get(String token) {
+        if(token == null) {
+            return null;
+        }
+        LoginSession loginSession = nearCache.get(token);
+        if(loginSession == null) {
+            loginSession = load(token);
+            if(loginSession == null) {
+                return null;
+            }
+            nearCache.put(token, loginSession);
+        }
+        touch(token);
+        return loginSession;
+    }
+
+    /**
+     * Checks the table even when the session is cached, since logging out or
+     * back in on another app server only deletes the row. Without this the
+     * token would keep working here until it left the cache.
+     */
+    @Override
+    public LoginSession resume(String token) {
+        if(token == null) {
+            return null;
+        }
+        if(nearCache.containsKey(token) && !exists(token)) {
+            nearCache.remove(token);
+            pendingTouches.remove(token);
+            return null;
+        }
+        return get(token);
+    }
+
+    //Only checks that the session exists, without decrypting it or counting it as used
+    @Override
+    public boolean containsKey(String token) {
+        if(token == null) {
+            return false;
+        }
+        return nearCache.containsKey(token) || exists(token);
+    }
+
+    private boolean exists(String token) {
+        try(Connection conn = ds.getConnection(); PreparedStatement stmt = conn.prepareStatement(SESSION_EXISTS)) {
+            stmt.setString(1, token);
+            stmt.setLong(2, System.currentTimeMillis());
+            try(ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        } catch(SQLException ex) {
+            System.out.println("Couldn't check login session. "+ex);
+            return false;
+        }
+    }
+
+    @Override
+    public void put(String token, LoginSession loginSession) {
+        nearCache.put(token, loginSession);
+        pendingTouches.remove(token);
+
+        ADLookup query = loginSession.getQuery();
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            byte[] credentials = encrypt(token, iv, query.getCredentials());
+            long expires = System.currentTimeMillis() + timeout;
+
+            //Write through so other app servers can see the login right away
+            try(Connection conn = ds.getConnection()) {
+                int updated;
+                try(PreparedStatement stmt = conn.prepareStatement(UPDATE_SESSION)) {
+                    stmt.setString(1, query.getPrincipal());
+                    stmt.setBytes(2, iv);
+                    stmt.setBytes(3, credentials);
+                    stmt.setLong(4, expires);
+                    stmt.setString(5, token);
+                    updated = stmt.executeUpdate();
+                }
+                if(updated == 0) {
+                    try(PreparedStatement stmt = conn.prepareStatement(INSERT_SESSION)) {
+                        stmt.setString(1, token);
+                        stmt.setString(2, query.getPrincipal());
+                        stmt.setBytes(3, iv);
+                        stmt.setBytes(4, credentials);
+                        stmt.setLong(5, expires);
+                        stmt.executeUpdate();
+                    }
+                }
+            }
+        } catch(GeneralSecurityException ex) {
+            System.err.println("Couldn't encrypt login session. "+ex);
+        } catch(SQLException ex) {
+            System.out.println("Couldn't store login session. "+ex);
+        }
+    }
+
+    @Override
+    public LoginSession remove(String token) {
+        LoginSession loginSession = nearCache.remove(token);
+        pendingTouches.remove(token);
+        try(Connection conn = ds.getConnection(); PreparedStatement stmt = conn.prepareStatement(DELETE_SESSION)) {
+            stmt.setString(1, token);
+            stmt.executeUpdate();
+        } catch(SQLException ex) {
+            System.out.println("Couldn't delete login session. "+ex);
+        }
+        return loginSession;
+    }
+
+    @Override
+    public void touch(String token) {
+        //Written to the database by the next flush instead of on every keepalive
+        pendingTouches.put(token, System.currentTimeMillis() + timeout);
+    }
+
+    @Override
+    public void close() {
+        flushTask.cancel(false);
+        purgeTask.cancel(false);
+        flushTouches();
+        nearCache.clear();
+    }
+
+    private LoginSession load(String token) {
+        try(Connection conn = ds.getConnection(); PreparedStatement stmt = conn.prepareStatement(SELECT_SESSION)) {
+            stmt.setString(1, token);
+            stmt.setLong(2, System.currentTimeMillis());
+            try(ResultSet rs = stmt.executeQuery()) {
+                if(!rs.next()) {
+                    return null;
+                }
+                String principal = rs.getString(1);
+                String password = decrypt(token, rs.getBytes(2), rs.getBytes(3));
+
+                //The websocket session belongs to whichever app server the token was created on
+                return new LoginSession(null, new ADLookup(connectionStr, principal, password, baseDN));
+            }
+        } catch(SQLException ex) {
+            System.out.println("Couldn't load login session. "+ex);
+        } catch(GeneralSecurityException ex) {
+            System.err.println("Couldn't decrypt login session. "+ex);
+        } catch(NamingException ex) {
+            System.out.println("Stored login session is no longer valid. "+ex);
+        }
+        return null;
+    }
+
+    /**
+     * Writes all pending access times to the database in a single batch.
+     */
+    private void flushTouches() {
+        if(pendingTouches.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try(Connection conn = ds.getConnection(); PreparedStatement stmt = conn.prepareStatement(TOUCH_SESSION)) {
+            int batchSize = 0;
+            for(Map.Entry<String,Long> entry : pendingTouches.entrySet()) {
+                //Only remove the entry if it wasn't touched again in the meantime
+                if(pendingTouches.remove(entry.getKey(), entry.getValue())) {
+                    stmt.setLong(1, entry.getValue());
+                    stmt.setString(2, entry.getKey());
+                    
+                    //A late keepalive can't bring back a session that expired or was removed
+                    stmt.setLong(3, now);
+                    stmt.addBatch();
+                    batchSize++;
+                }
+            }
+            if(batchSize > 0) {
+                stmt.executeBatch();
+            }
+        } catch(SQLException ex) {
+            System.out.println("Couldn't update login session expiration. "+ex);
+        }
+    }
+
+    private void purgeExpired() {
+        try(Connection conn = ds.getConnection(); PreparedStatement stmt = conn.prepareStatement(DELETE_EXPIRED)) {
+            stmt.setLong(1, System.currentTimeMillis());
+            int deleted = stmt.executeUpdate();
+            if(deleted > 0) {
+                System.out.println("Deleted "+deleted+" expired login sessions.");
+            }
+        } catch(SQLException ex) {
+            System.out.println("Couldn't delete expired login sessions. "+ex);
+        }
+    }
+
+    private byte[] encrypt(String token, byte[] iv, String password) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+
+        //Bind the ciphertext to its token so it can't be copied to another row
+        cipher.updateAAD(token.getBytes(StandardCharsets.UTF_8));
+        return cipher.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String decrypt(String token, byte[] iv, byte[] credentials) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+        cipher.updateAAD(token.getBytes(StandardCharsets.UTF_8));
+        return new String(cipher.doFinal(credentials), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * JdbcSuggestionBackend finds usernames by prefix in the users table. Pages
+ * are read in index order after the last username received, and matches are
+ * only counted up to a limit.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.DataSource;
+
+public class JdbcSuggestionBackend implements SuggestionBackend {
+    //Read usernames in index order after an optional cursor
+    private static final String QUERY_TOP_USER = "SELECT username FROM users WHERE username LIKE ? ORDER BY username LIMIT ";
+    private static final String QUERY_TOP_USER_AFTER = "SELECT username FROM users WHERE username LIKE ? AND username > ? ORDER BY username LIMIT ";
+
+    //Counts matching usernames without reading more than countCap rows
+    private static final String COUNT_USER = "SELECT COUNT(*) FROM (SELECT username FROM users WHERE username LIKE ? LIMIT ";
+
+    private final DataSource ds;
+
+    //The most matches to count
+    private final int countCap;
+
+    private final SuggestionStats stats = new SuggestionStats();
+
+    public JdbcSuggestionBackend(DataSource ds, int countCap) {
+        this.ds = ds;
+        this.countCap = countCap;
+    }
+
+    @Override
+    public String getName() {
+        return "jdbc";
+    }
+
+    @Override
+    public Page suggest(String prefix, String after, int limit, boolean countTotal) throws SQLException {
+        long startTime = System.nanoTime();
+        int operations = 0;
+        int total = -1;
+        List<String> usernames = new ArrayList<>(limit+1);
+        try(Connection conn = ds.getConnection()) {
+            if(countTotal) {
+                try(PreparedStatement stmt = conn.prepareStatement(COUNT_USER+countCap+") matches")) {
+                    stmt.setString(1, prefix+"%");
+                    try(ResultSet rs = stmt.executeQuery()) {
+                        if(rs.next()) {
+                            total = rs.getInt(1);
+                        }
+                    }
+                }
+                operations++;
+            }
+
+            //Read one extra row to know if there are more
+            String sql = (after == null ? QUERY_TOP_USER : QUERY_TOP_USER_AFTER) + (limit+1);
+            try(PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, prefix+"%");
+                if(after != null) {
+                    stmt.setString(2, after);
+                }
+                try(ResultSet rs = stmt.executeQuery()) {
+                    while(rs.next()) {
+                        usernames.add(rs.getString(1));
+                    }
+                }
+            }
+            operations++;
+        } catch(SQLException ex) {
+            stats.recordError();
+            throw ex;
+        }
+        stats.record(System.nanoTime()-startTime, operations, usernames.size() + (total >= 0 ? 1 : 0));
+        return new Page(usernames, total, total >= countCap);
+    }
+
+    @Override
+    public SuggestionStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * LdapSuggestionBackend finds usernames by prefix on the domain controller, so
+ * suggestions don't depend on the users table. The domain controller sorts
+ * the matches and returns only the window asked for with the virtual list
+ * view control, which also counts every match. If the domain controller
+ * doesn't support it, matches are read with paged results and sorted here.
+ * Every search root is searched at once and their windows are merged.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.SortControl;
+
+public class LdapSuggestionBackend implements SuggestionBackend {
+    //The virtual list view request and response controls from draft-ietf-ldapext-ldapv3-vlv
+    private static final String VLV_REQUEST_OID = "2.16.840.1.113730.3.4.9";
+    private static final String VLV_RESPONSE_OID = "2.16.840.1.113730.3.4.10";
+
+    private static final String[] USERNAME = new String[]{"sAMAccountName"};
+
+    //Used to bind as the service account
+    private final String connectionStr;
+    private final String serviceUser;
+    private final String servicePass;
+    private final String baseDN;
+
+    //Every root is searched for matches
+    private final SearchRoots searchRoots;
+
+    //The number of entries per page when falling back to paged results
+    private final int pageSize;
+
+    //The most matches to read when falling back to paged results
+    private final int countCap;
+
+    //The service account's lookup, created on first use and again after a connection failure
+    private volatile ADLookup lookup;
+
+    //Set to false the first time the domain controller rejects the virtual list view
+    private volatile boolean vlvSupported = true;
+
+    private final SuggestionStats stats = new SuggestionStats();
+
+    public LdapSuggestionBackend(String connectionStr, String serviceUser, String servicePass, String baseDN, SearchRoots searchRoots, int pageSize, int countCap) {
+        this.connectionStr = connectionStr;
+        this.serviceUser = serviceUser;
+        this.servicePass = servicePass;
+        this.baseDN = baseDN;
+        this.searchRoots = searchRoots;
+        this.pageSize = pageSize;
+        this.countCap = countCap;
+    }
+
+    @Override
+    public String getName() {
+        return "ldap";
+    }
+
+    public boolean isVirtualListViewSupported() {
+        return vlvSupported;
+    }
+
+    @Override
+    public Page suggest(String prefix, String after, int limit, boolean countTotal) throws NamingException {
+        long startTime = System.nanoTime();
+        String filter = "(&(objectCategory=person)(objectClass=user)(sAMAccountName=" + ADLookup.escapeLDAPSearchFilter(prefix) + "*))";
+        int[] load = new int[2];
+        try {
+            List<Page> pages = searchRoots.all(searchRoots.lookups(getLookup()), (query) -> {
+                int[] rootLoad = new int[2];
+                Page page = suggestRoot(query, filter, after, limit, countTotal, rootLoad);
+                synchronized(load) {
+                    load[0] += rootLoad[0];
+                    load[1] += rootLoad[1];
+                }
+                return page;
+            });
+            Page page = pages.size() == 1 ? pages.get(0) : merge(pages, limit);
+            synchronized(load) {
+                stats.record(System.nanoTime()-startTime, load[0], load[1]);
+            }
+            return page;
+        } catch(NamingException ex) {
+            stats.recordError();
+            if(ex instanceof CommunicationException || ex instanceof ServiceUnavailableException) {
+                lookup = null;
+            }
+            throw ex;
+        }
+    }
+
+    @Override
+    public SuggestionStats getStats() {
+        return stats;
+    }
+
+    private ADLookup getLookup() throws NamingException {
+        ADLookup query = lookup;
+        if(query == null) {
+            query = new ADLookup(connectionStr, serviceUser, servicePass, baseDN);
+            lookup = query;
+        }
+        return query;
+    }
+
+    //Finds one root's window of matches with the virtual list view if it works
+    private Page suggestRoot(ADLookup query, String filter, String after, int limit, boolean countTotal, int[] load) throws NamingException {
+        if(vlvSupported) {
+            try {
+                Page page = suggestVirtualListView(query, filter, after, limit, load);
+                if(page != null) {
+                    return page;
+                }
+            } catch(OperationNotSupportedException ex) {
+                //unavailableCriticalExtension means the controls aren't supported at all. Time and size limits are thrown as usual.
+                vlvSupported = false;
+                System.out.println("The domain controller rejected the virtual list view. Using paged results for suggestions. "+ex);
+            }
+        }
+        return suggestPaged(query, filter, after, limit, countTotal, load);
+    }
+
+    /**
+     * Merges the windows of several roots. Each root sent its first limit+1
+     * matches, so the first limit+1 of all of them are the right window.
+     * The totals are added, so an account under two overlapping roots is
+     * counted twice.
+     */
+    private static Page merge(List<Page> pages, int limit) {
+        TreeSet<String> merged = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        int total = 0;
+        boolean totalCapped = false;
+        for(Page page : pages) {
+            merged.addAll(page.getUsernames());
+            total = total < 0 || page.getTotal() < 0 ? -1 : total+page.getTotal();
+            totalCapped |= page.isTotalCapped();
+        }
+        List<String> usernames = new ArrayList<>(limit+1);
+        for(String username : merged) {
+            if(usernames.size() > limit) {
+                break;
+            }
+            usernames.add(username);
+        }
+        return new Page(usernames, total, totalCapped);
+    }
+
+    /**
+     * Asks the domain controller for just one window of the sorted matches.
+     *
+     * @return the page, or null if the domain controller didn't send a usable response
+     */
+    private Page suggestVirtualListView(ADLookup query, String filter, String after, int limit, int[] load) throws NamingException {
+        Control[] controls;
+        try {
+            controls = new Control[]{
+                new SortControl(USERNAME[0], Control.CRITICAL),
+                new BasicControl(VLV_REQUEST_OID, Control.CRITICAL, encodeRequest(after, limit))
+            };
+        } catch(IOException ex) {
+            throw new NamingException("Couldn't encode sort control. " + ex);
+        }
+        List<Control> response = new ArrayList<>();
+        List<String[]> results = query.searchWithControls(filter, USERNAME, controls, response);
+        load[0]++;
+        load[1] += results.size();
+
+        int[] vlvResponse = null;
+        for(Control control : response) {
+            if(VLV_RESPONSE_OID.equals(control.getID())) {
+                vlvResponse = decodeResponse(control.getEncodedValue());
+            }
+        }
+        if(vlvResponse == null || vlvResponse[2] != 0) {
+            return null;
+        }
+
+        //The window starts at the last username already sent, which is skipped
+        List<String> usernames = new ArrayList<>(limit+1);
+        for(String[] result : results) {
+            if(usernames.size() <= limit && (after == null || result[0].compareToIgnoreCase(after) > 0)) {
+                usernames.add(result[0]);
+            }
+        }
+        return new Page(usernames, vlvResponse[1], false);
+    }
+
+    /**
+     * Reads every match a page at a time, since the domain controller returns
+     * them in no particular order, and keeps only the first limit+1 in
+     * alphabetical order. Only the count is capped at countCap.
+     */
+    private Page suggestPaged(ADLookup query, String filter, String after, int limit, boolean countTotal, int[] load) throws NamingException {
+        if(after != null) {
+            filter = "(&" + filter + "(!(sAMAccountName<=" + ADLookup.escapeLDAPSearchFilter(after) + ")))";
+        }
+        TreeSet<String> window = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        int read = query.searchPaged(filter, USERNAME, pageSize, (page) -> {
+            for(String[] result : page) {
+                window.add(result[0]);
+                if(window.size() > limit+1) {
+                    window.pollLast();
+                }
+            }
+            load[0]++;
+            return true;
+        });
+        load[1] += read;
+        return new Page(new ArrayList<>(window), countTotal ? Math.min(read, countCap) : -1, read >= countCap);
+    }
+
+    /**
+     * Encodes a VirtualListViewRequest. The first page starts at offset 1 and
+     * later pages start at the last username already sent.
+     *
+     *   VirtualListViewRequest ::= SEQUENCE {
+     *       beforeCount INTEGER, afterCount INTEGER,
+     *       target CHOICE { byOffset [0] SEQUENCE { offset INTEGER, contentCount INTEGER },
+     *                       greaterThanOrEqual [1] AssertionValue } }
+     */
+    private static byte[] encodeRequest(String after, int limit) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeInteger(body, 0x02, 0);
+        if(after == null) {
+            writeInteger(body, 0x02, limit);
+            ByteArrayOutputStream byOffset = new ByteArrayOutputStream();
+            writeInteger(byOffset, 0x02, 1);
+            writeInteger(byOffset, 0x02, 0);
+            writeElement(body, 0xa0, byOffset.toByteArray());
+        }
+        else {
+            //One more because the window includes the username it starts at
+            writeInteger(body, 0x02, limit+1);
+            writeElement(body, 0x81, after.getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeElement(request, 0x30, body.toByteArray());
+        return request.toByteArray();
+    }
+
+    /**
+     * Decodes a VirtualListViewResponse.
+     *
+     *   VirtualListViewResponse ::= SEQUENCE {
+     *       targetPosition INTEGER, contentCount INTEGER,
+     *       virtualListViewResult ENUMERATED, contextID OCTET STRING OPTIONAL }
+     *
+     * @return the target position, content count, and result code, or null if it couldn't be read
+     */
+    private static int[] decodeResponse(byte[] value) {
+        if(value == null) {
+            return null;
+        }
+        int[] pos = new int[]{0};
+        if(readHeader(value, pos, 0x30) < 0) {
+            return null;
+        }
+        int[] decoded = new int[3];
+        int[] tags = new int[]{0x02, 0x02, 0x0a};
+        for(int i = 0; i < tags.length; i++) {
+            int length = readHeader(value, pos, tags[i]);
+            if(length < 1 || length > 4 || pos[0]+length > value.length) {
+                return null;
+            }
+            int number = value[pos[0]];
+            for(int j = 1; j < length; j++) {
+                number = (number << 8) | (value[pos[0]+j] & 0xff);
+            }
+            decoded[i] = number;
+            pos[0] += length;
+        }
+        return decoded;
+    }
+
+    //Checks the tag at pos and returns the length that follows it, or -1 if it doesn't match
+    private static int readHeader(byte[] value, int[] pos, int tag) {
+        if(pos[0]+2 > value.length || (value[pos[0]] & 0xff) != tag) {
+            return -1;
+        }
+        int length = value[pos[0]+1] & 0xff;
+        pos[0] += 2;
+        if(length >= 0x80) {
+            int bytes = length & 0x7f;
+            if(bytes == 0 || bytes > 3 || pos[0]+bytes > value.length) {
+                return -1;
+            }
+            length = 0;
+            for(int i = 0; i < bytes; i++) {
+                length = (length << 8) | (value[pos[0]++] & 0xff);
+            }
+        }
+        return length;
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int tag, int number) {
+        writeElement(out, tag, BigInteger.valueOf(number).toByteArray());
+    }
+
+    private static void writeElement(ByteArrayOutputStream out, int tag, byte[] content) {
+        out.write(tag);
+        int length = content.length;
+        if(length < 0x80) {
+            out.write(length);
+        }
+        else if(length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        }
+        else {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        }
+        out.write(content, 0, length);
+    }
+}
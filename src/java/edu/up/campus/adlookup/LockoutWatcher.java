@@ -0,0 +1,158 @@
+/*
+ * LockoutWatcher tells sessions when accounts they are watching get locked out.
+ * A single poller asks the domain controller for locked accounts that changed
+ * since the last poll and sends each lockout to every session watching it, so
+ * any number of watchers cost one search per interval.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.websocket.Session;
+
+public class LockoutWatcher {
+    private static final String[] WATCH_ATTRIBUTES = new String[]{"sAMAccountName", "lockoutTime", "uSNChanged"};
+    
+    //How long to remember a lockout that hasn't been seen again
+    private static final long LOCKOUT_MEMORY = TimeUnit.DAYS.toMillis(1);
+    
+    //The lowercase usernames each session is watching
+    private final Map<Session,Set<String>> watchedAccounts = new ConcurrentHashMap<>();
+    
+    //Sessions that want to hear about every new lockout
+    private final Set<Session> allLockouts = ConcurrentHashMap.newKeySet();
+    
+    //The last lockout sent for each account so other changes aren't sent as lockouts, least recently seen first
+    private final LinkedHashMap<String,Lockout> lastLockouts = new LinkedHashMap<>(16, 0.75f, true);
+    
+    //Changes up to this update sequence number have already been checked
+    private long highestUSN = -1;
+    
+    private final Listener listener;
+    
+    public LockoutWatcher(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Replaces the accounts a session is watching.
+     * 
+     * @param  session   the session to notify
+     * @param  usernames the accounts to watch
+     * @param  all       true to also hear about every new lockout
+     */
+    public void watch(Session session, Collection<String> usernames, boolean all) {
+        Set<String> accounts = ConcurrentHashMap.newKeySet();
+        for(String username : usernames) {
+            accounts.add(username.toLowerCase(Locale.ROOT));
+        }
+        watchedAccounts.put(session, accounts);
+        if(all) {
+            allLockouts.add(session);
+        }
+        else {
+            allLockouts.remove(session);
+        }
+    }
+    
+    public void unwatch(Session session) {
+        watchedAccounts.remove(session);
+        allLockouts.remove(session);
+    }
+    
+    public boolean hasWatchers() {
+        return !allLockouts.isEmpty() || !watchedAccounts.isEmpty();
+    }
+    
+    //Start over from the current changes when someone watches again
+    public synchronized void reset() {
+        highestUSN = -1;
+        lastLockouts.clear();
+    }
+    
+    /**
+     * Searches for accounts that were locked out since the last poll and sends
+     * them to their watchers. The first poll only records where to start.
+     * 
+     * @param  query    the lookup to search with
+     * @param  pageSize the number of entries to request per page
+     */
+    public void poll(ADLookup query, int pageSize) throws NamingException {
+        //Sent after the lock is released so a slow session doesn't hold up the next poll
+        for(String[] lockout : findLockouts(query, pageSize)) {
+            notifyWatchers(lockout[0], lockout[0].toLowerCase(Locale.ROOT), lockout[1]);
+        }
+    }
+    
+    //The username and lockoutTime of each new lockout since the last poll
+    private synchronized List<String[]> findLockouts(ADLookup query, int pageSize) throws NamingException {
+        List<String[]> lockouts = new ArrayList<>();
+        
+        //Read this first so changes made during the search are found next time
+        long committedUSN = Long.parseLong(query.getRootAttribute("highestCommittedUSN"));
+        if(highestUSN < 0) {
+            highestUSN = committedUSN;
+            return lockouts;
+        }
+        long now = System.currentTimeMillis();
+        String filter = "(&(objectCategory=person)(objectClass=user)(lockoutTime>=1)(uSNChanged>=" + (highestUSN+1) + "))";
+        query.searchPaged(filter, WATCH_ATTRIBUTES, pageSize, (page) -> {
+            for(String[] account : page) {
+                String username = account[0].toLowerCase(Locale.ROOT);
+                String lockoutTime = account[1];
+                Lockout last = lastLockouts.put(username, new Lockout(lockoutTime, now));
+                if(last == null || !lockoutTime.equals(last.lockoutTime)) {
+                    lockouts.add(new String[]{account[0], lockoutTime});
+                }
+            }
+            return true;
+        });
+        highestUSN = committedUSN;
+        
+        //Only remember recent lockouts. The least recently seen are first.
+        Iterator<Lockout> it = lastLockouts.values().iterator();
+        while(it.hasNext() && now-it.next().seen > LOCKOUT_MEMORY) {
+            it.remove();
+        }
+        return lockouts;
+    }
+    
+    private void notifyWatchers(String username, String key, String lockoutTime) {
+        for(Session session : allLockouts) {
+            listener.locked(session, username, lockoutTime);
+        }
+        for(Map.Entry<Session,Set<String>> watcher : watchedAccounts.entrySet()) {
+            if(!allLockouts.contains(watcher.getKey()) && watcher.getValue().contains(key)) {
+                listener.locked(watcher.getKey(), username, lockoutTime);
+            }
+        }
+    }
+    
+    private static class Lockout {
+        final String lockoutTime;
+        
+        //When the account was last found by a poll
+        final long seen;
+        
+        Lockout(String lockoutTime, long seen) {
+            this.lockoutTime = lockoutTime;
+            this.seen = seen;
+        }
+    }
+    
+    public interface Listener {
+        void locked(Session session, String username, String lockoutTime);
+    }
+}
@@ -4,6 +4,9 @@
  * and open the template in the editor.
  */
 package edu.up.campus.adlookup;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
 import javax.websocket.Session;
 
 /**
@@ -13,6 +16,14 @@ import javax.websocket.Session;
 public class LoginSession {
     private Session session;
     ADLookup query;
+    
+    //The popular usernames sent on the first page of the last prefix, in lower case
+    private String popularPrefix;
+    private Set<String> popular = Collections.emptySet();
+    
+    //The account whose user info was sent last, so unlocking it changes the same account
+    private String shownUsername;
+    private SearchRoots.Match shown;
     public LoginSession(Session session, ADLookup query) {
         this.session = session;
         this.query = query;
@@ -28,5 +39,25 @@ public class LoginSession {
     public void deleteSession() {
         session = null;
     }
+    
+    public synchronized void setPopular(String prefix, Set<String> usernames) {
+        popularPrefix = prefix.toLowerCase(Locale.ROOT);
+        popular = usernames;
+    }
+    
+    public synchronized void setShown(String username, SearchRoots.Match match) {
+        shownUsername = username;
+        shown = match;
+    }
+    
+    //The account last shown for a username, or null if another user was shown since
+    public synchronized SearchRoots.Match getShown(String username) {
+        return username.equalsIgnoreCase(shownUsername) ? shown : null;
+    }
+    
+    //The popular usernames already sent for a prefix, so later pages can skip them
+    public synchronized Set<String> getPopular(String prefix) {
+        return prefix.toLowerCase(Locale.ROOT).equals(popularPrefix) ? popular : Collections.<String>emptySet();
+    }
 
 }
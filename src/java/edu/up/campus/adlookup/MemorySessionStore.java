@@ -0,0 +1,60 @@
+/*
+ * MemorySessionStore keeps LoginSessions in this app server's memory. They are
+ * lost when the application is redeployed.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.jodah.expiringmap.ExpiringMap;
+import net.jodah.expiringmap.ExpiringMap.ExpirationPolicy;
+
+public class MemorySessionStore implements SessionStore {
+    private final Map<String,LoginSession> loginSessions;
+    
+    /**
+     * Constructor for MemorySessionStore.
+     * 
+     * @param  timeout the number of milliseconds before an unused LoginSession expires
+     */
+    public MemorySessionStore(long timeout) {
+        //Create map that expires old LoginSessions
+        loginSessions = ExpiringMap.builder()
+            .expiration(timeout, TimeUnit.MILLISECONDS)
+            .expirationPolicy(ExpirationPolicy.ACCESSED)
+            .build();
+    }
+
+    @Override
+    public LoginSession get(String token) {
+        return loginSessions.get(token);
+    }
+
+    @Override
+    public boolean containsKey(String token) {
+        return loginSessions.containsKey(token);
+    }
+
+    @Override
+    public void put(String token, LoginSession loginSession) {
+        loginSessions.put(token, loginSession);
+    }
+
+    @Override
+    public LoginSession remove(String token) {
+        return loginSessions.remove(token);
+    }
+
+    @Override
+    public void touch(String token) {
+        loginSessions.get(token);
+    }
+
+    @Override
+    public void close() {
+        loginSessions.clear();
+    }
+}
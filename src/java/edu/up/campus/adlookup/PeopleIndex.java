@@ -0,0 +1,482 @@
+/*
+ * PeopleIndex finds people by any part of their username, display name, email
+ * nickname, or employee ID. Every field is split into bigrams, and each bigram
+ * has a sorted posting list of people stored in a plain int array. Queries
+ * count shared bigrams to find candidates, then check each candidate for a
+ * substring match or a match with a few typos and keep the best results.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class PeopleIndex {
+    //The indexed fields in the order they are stored
+    public static final int USERNAME = 0;
+    public static final int DISPLAY_NAME = 1;
+    public static final int MAIL_NICKNAME = 2;
+    public static final int EMPLOYEE_ID = 3;
+
+    //The LDAP attributes for each field
+    public static final String[] ATTRIBUTES = new String[]{
+                "sAMAccountName",
+                "displayName",
+                "mailNickname",
+                "employeeID"
+            };
+
+    //Added to the score of a match in each field
+    private static final int[] FIELD_WEIGHTS = new int[]{30, 20, 10, 30};
+
+    //Scores for each kind of match before the field weight is added
+    private static final int EXACT_SCORE = 1000;
+    private static final int PREFIX_SCORE = 800;
+    private static final int WORD_PREFIX_SCORE = 600;
+    private static final int SUBSTRING_SCORE = 400;
+    private static final int FUZZY_SCORE = 200;
+    private static final int EDIT_PENALTY = 50;
+    private static final int MAX_FUZZY_SCORE = FUZZY_SCORE + 30;
+
+    //The most candidates to check for typos in one query
+    private static final int MAX_FUZZY_CHECKS = 2000;
+
+    //Marks the start of a field so short queries can match a field prefix
+    private static final char FIELD_START = '\u0002';
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //The original and lowercase fields of each person by id
+    private String[][] docs = new String[1024][];
+    private String[][] docKeys = new String[1024][];
+    private int docCount = 0;
+
+    //Ids are not reused, so an updated person gets a new id and the old one is deleted
+    private final BitSet deleted = new BitSet();
+    private int deletedCount = 0;
+    private final HashMap<String,Integer> idsByUsername = new HashMap<>();
+
+    //Open addressing table from bigram to its posting list
+    private int[] gramKeys = new int[1024];
+    private int[][] postings = new int[1024][];
+    private int[] postingSizes = new int[1024];
+    private int gramCount = 0;
+
+    /**
+     * Adds a person or replaces their fields if they are already indexed.
+     *
+     * @param  username     the person's sAMAccountName
+     * @param  displayName  the person's display name
+     * @param  mailNickname the person's email nickname
+     * @param  employeeID   the person's employee ID
+     */
+    public void update(String username, String displayName, String mailNickname, String employeeID) {
+        if(username == null || username.isEmpty()) {
+            return;
+        }
+        String[] values = new String[]{
+            username,
+            displayName == null ? "" : displayName,
+            mailNickname == null ? "" : mailNickname,
+            employeeID == null ? "" : employeeID
+        };
+        lock.writeLock().lock();
+        try {
+            Integer oldId = idsByUsername.get(normalize(username));
+            if(oldId != null) {
+                //Keep the username's case from the directory
+                values[USERNAME] = docs[oldId][USERNAME];
+                if(Arrays.equals(docs[oldId], values)) {
+                    return;
+                }
+                delete(oldId);
+            }
+            add(values);
+            if(deletedCount > 1024 && deletedCount > (docCount-deletedCount)/4) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String username) {
+        lock.writeLock().lock();
+        try {
+            Integer id = idsByUsername.get(normalize(username));
+            if(id != null) {
+                delete(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //The number of people in the index
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docCount - deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to count usernames from the index, such as for warming up.
+     */
+    public List<String> sample(int count) {
+        lock.readLock().lock();
+        try {
+            List<String> usernames = new ArrayList<>(count);
+            for(int id = 0; id < docCount && usernames.size() < count; id++) {
+                if(!deleted.get(id)) {
+                    usernames.add(docs[id][USERNAME]);
+                }
+            }
+            return usernames;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the best matching people for a query. Exact, prefix, and
+     * substring matches rank above matches with typos.
+     *
+     * @param  query the text to search for
+     * @param  limit the maximum number of results
+     * @return       the results from best to worst
+     */
+    public List<Hit> search(String query, int limit) {
+        String q = normalize(query);
+        if(q.length() < 2 || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        //Allow more typos in longer queries
+        int maxEdits = q.length() <= 3 ? 0 : (q.length() <= 6 ? 1 : 2);
+        int[] grams = queryGrams(q);
+
+        //Each typo changes at most two bigrams of the query
+        int minShared = Math.max(1, grams.length - 2*maxEdits);
+
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit+1, WORST_FIRST);
+        lock.readLock().lock();
+        try {
+            //Count the bigrams each person shares with the query
+            int[] counts = new int[docCount];
+            for(int gram : grams) {
+                int slot = findSlot(gram);
+                if(postings[slot] == null) {
+                    continue;
+                }
+                int[] list = postings[slot];
+                int size = postingSizes[slot];
+                for(int i = 0; i < size; i++) {
+                    counts[list[i]]++;
+                }
+            }
+
+            //Sort the candidates by shared bigrams, most first, with a counting sort
+            int[] histogram = new int[grams.length+1];
+            int candidates = 0;
+            for(int id = 0; id < docCount; id++) {
+                if(counts[id] >= minShared && !deleted.get(id)) {
+                    histogram[counts[id]]++;
+                    candidates++;
+                }
+            }
+            int[] offsets = new int[grams.length+1];
+            for(int shared = grams.length, offset = 0; shared >= minShared; shared--) {
+                offsets[shared] = offset;
+                offset += histogram[shared];
+            }
+            int[] order = new int[candidates];
+            for(int id = 0; id < docCount; id++) {
+                if(counts[id] >= minShared && !deleted.get(id)) {
+                    order[offsets[counts[id]]++] = id;
+                }
+            }
+
+            int fuzzyChecks = 0;
+            for(int i = 0; i < candidates; i++) {
+                int id = order[i];
+
+                //Skip typo matching once every result is a better kind of match
+                boolean allowFuzzy = maxEdits > 0 && fuzzyChecks < MAX_FUZZY_CHECKS
+                        && (top.size() < limit || top.peek().score <= MAX_FUZZY_SCORE);
+
+                //Only people with every bigram of the query can contain it
+                if(counts[id] < grams.length && !allowFuzzy) {
+                    break;
+                }
+                if(allowFuzzy) {
+                    fuzzyChecks++;
+                }
+                int score = score(q, docKeys[id], maxEdits, allowFuzzy);
+                if(score > 0) {
+                    top.add(new Hit(docs[id], score));
+                    if(top.size() > limit) {
+                        top.poll();
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Hit> results = new ArrayList<>(top);
+        Collections.sort(results, Collections.reverseOrder(WORST_FIRST));
+        return results;
+    }
+
+    //Returns the best score of any field or 0 if nothing matches
+    private static int score(String q, String[] keys, int maxEdits, boolean allowFuzzy) {
+        int best = 0;
+        for(int field = 0; field < keys.length; field++) {
+            String key = keys[field];
+            int score = 0;
+            int index = key.indexOf(q);
+            if(index == 0) {
+                score = key.length() == q.length() ? EXACT_SCORE : PREFIX_SCORE;
+            }
+            else if(index > 0) {
+                char before = key.charAt(index-1);
+                score = Character.isLetterOrDigit(before) ? SUBSTRING_SCORE : WORD_PREFIX_SCORE;
+            }
+            else if(allowFuzzy) {
+                int edits = substringDistance(q, key, maxEdits);
+                if(edits <= maxEdits) {
+                    score = FUZZY_SCORE - edits*EDIT_PENALTY;
+                }
+            }
+            if(score > 0) {
+                best = Math.max(best, score + FIELD_WEIGHTS[field]);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the fewest edits needed to make the pattern match any substring
+     * of the text, stopping early once it can't be at most maxEdits.
+     */
+    private static int substringDistance(String pattern, String text, int maxEdits) {
+        int m = pattern.length();
+        if(text.length() < m - maxEdits) {
+            return maxEdits+1;
+        }
+        int[] col = new int[m+1];
+        for(int i = 0; i <= m; i++) {
+            col[i] = i;
+        }
+        int best = m;
+        for(int j = 0; j < text.length(); j++) {
+            char t = text.charAt(j);
+
+            //A match can start anywhere in the text
+            int diagonal = col[0];
+            col[0] = 0;
+            for(int i = 1; i <= m; i++) {
+                int above = col[i];
+                int cost = pattern.charAt(i-1) == t ? 0 : 1;
+                col[i] = Math.min(Math.min(above+1, col[i-1]+1), diagonal+cost);
+                diagonal = above;
+            }
+            best = Math.min(best, col[m]);
+            if(best == 0) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    private void add(String[] values) {
+        if(docCount == docs.length) {
+            docs = Arrays.copyOf(docs, docCount*2);
+            docKeys = Arrays.copyOf(docKeys, docCount*2);
+        }
+        String[] keys = new String[values.length];
+        for(int i = 0; i < values.length; i++) {
+            keys[i] = normalize(values[i]);
+        }
+        int id = docCount++;
+        docs[id] = values;
+        docKeys[id] = keys;
+        idsByUsername.put(keys[USERNAME], id);
+
+        //Ids only increase, so appending keeps every posting list sorted
+        for(int gram : docGrams(keys)) {
+            addPosting(gram, id);
+        }
+    }
+
+    private void delete(int id) {
+        if(!deleted.get(id)) {
+            deleted.set(id);
+            deletedCount++;
+            idsByUsername.remove(docKeys[id][USERNAME]);
+        }
+    }
+
+    //Rebuilds the posting lists without deleted people
+    private void compact() {
+        String[][] oldDocs = docs;
+        int oldCount = docCount;
+        BitSet oldDeleted = (BitSet) deleted.clone();
+
+        docs = new String[Math.max(1024, Integer.highestOneBit(oldCount-deletedCount)*2)][];
+        docKeys = new String[docs.length][];
+        docCount = 0;
+        deleted.clear();
+        deletedCount = 0;
+        idsByUsername.clear();
+        gramKeys = new int[gramKeys.length];
+        postings = new int[postings.length][];
+        postingSizes = new int[postingSizes.length];
+        gramCount = 0;
+
+        for(int id = 0; id < oldCount; id++) {
+            if(!oldDeleted.get(id)) {
+                add(oldDocs[id]);
+            }
+        }
+    }
+
+    private void addPosting(int gram, int id) {
+        int slot = findSlot(gram);
+        if(postings[slot] == null) {
+            gramKeys[slot] = gram;
+            postings[slot] = new int[4];
+            gramCount++;
+
+            //Keep the table at most half full
+            if(gramCount*2 > gramKeys.length) {
+                resize();
+                slot = findSlot(gram);
+            }
+        }
+        int size = postingSizes[slot];
+        if(size == postings[slot].length) {
+            postings[slot] = Arrays.copyOf(postings[slot], size*2);
+        }
+        postings[slot][size] = id;
+        postingSizes[slot] = size+1;
+    }
+
+    //Returns the slot holding the gram or the empty slot where it belongs
+    private int findSlot(int gram) {
+        int mask = gramKeys.length-1;
+        int hash = gram * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while(postings[slot] != null && gramKeys[slot] != gram) {
+            slot = (slot+1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        int[] oldKeys = gramKeys;
+        int[][] oldPostings = postings;
+        int[] oldSizes = postingSizes;
+        gramKeys = new int[oldKeys.length*2];
+        postings = new int[oldKeys.length*2][];
+        postingSizes = new int[oldKeys.length*2];
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldPostings[i] != null) {
+                int slot = findSlot(oldKeys[i]);
+                gramKeys[slot] = oldKeys[i];
+                postings[slot] = oldPostings[i];
+                postingSizes[slot] = oldSizes[i];
+            }
+        }
+    }
+
+    //Returns the distinct bigrams of every field, including the field start
+    private static int[] docGrams(String[] keys) {
+        int total = 0;
+        for(String key : keys) {
+            total += key.length();
+        }
+        int[] grams = new int[total];
+        int count = 0;
+        for(String key : keys) {
+            if(key.isEmpty()) {
+                continue;
+            }
+            char previous = FIELD_START;
+            for(int i = 0; i < key.length(); i++) {
+                grams[count++] = gram(previous, key.charAt(i));
+                previous = key.charAt(i);
+            }
+        }
+        return distinct(grams, count);
+    }
+
+    private static int[] queryGrams(String q) {
+        //A two letter query only matches the start of a field
+        if(q.length() == 2) {
+            return new int[]{gram(FIELD_START, q.charAt(0)), gram(q.charAt(0), q.charAt(1))};
+        }
+        int[] grams = new int[q.length()-1];
+        for(int i = 0; i < grams.length; i++) {
+            grams[i] = gram(q.charAt(i), q.charAt(i+1));
+        }
+        return distinct(grams, grams.length);
+    }
+
+    private static int[] distinct(int[] grams, int count) {
+        Arrays.sort(grams, 0, count);
+        int unique = 0;
+        for(int i = 0; i < count; i++) {
+            if(unique == 0 || grams[unique-1] != grams[i]) {
+                grams[unique++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, unique);
+    }
+
+    private static int gram(char first, char second) {
+        return first << 16 | second;
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    //Orders hits from worst to best so the heap can drop the worst one
+    private static final Comparator<Hit> WORST_FIRST = (a, b) -> {
+        if(a.score != b.score) {
+            return Integer.compare(a.score, b.score);
+        }
+        return b.fields[USERNAME].compareToIgnoreCase(a.fields[USERNAME]);
+    };
+
+    public static class Hit {
+        private final String[] fields;
+        private final int score;
+
+        Hit(String[] fields, int score) {
+            this.fields = fields;
+            this.score = score;
+        }
+
+        public String getField(int field) {
+            return fields[field];
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * PrefixManifest is a Bloom filter of the username prefixes a browser has
+ * every suggestion for. The browser sends it after logging in and with each
+ * keepalive so the server can forget prefixes the browser no longer has, such
+ * as after the page was reloaded. websocket.js builds it with the same hashes.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.Base64;
+
+public class PrefixManifest {
+    //Larger manifests are ignored to bound the memory a client can make the server use
+    public static final int MAX_BITS = 1 << 20;
+    public static final int MAX_HASHES = 16;
+
+    private final byte[] bits;
+    private final int size;
+    private final int hashes;
+    private final int count;
+
+    private PrefixManifest(byte[] bits, int size, int hashes, int count) {
+        this.bits = bits;
+        this.size = size;
+        this.hashes = hashes;
+        this.count = count;
+    }
+
+    /**
+     * Reads a manifest sent by a browser.
+     *
+     * @param  encoded the base64 encoded bits
+     * @param  size    the number of bits
+     * @param  hashes  the number of hashes per prefix
+     * @param  count   the number of prefixes added
+     * @return         the manifest, or null if it isn't valid
+     */
+    public static PrefixManifest decode(String encoded, int size, int hashes, int count) {
+        if(size <= 0 || size > MAX_BITS || hashes <= 0 || hashes > MAX_HASHES || count < 0) {
+            return null;
+        }
+        byte[] bits;
+        try {
+            bits = Base64.getDecoder().decode(encoded);
+        } catch(IllegalArgumentException ex) {
+            return null;
+        }
+        if(bits.length != (size+7)/8) {
+            return null;
+        }
+        return new PrefixManifest(bits, size, hashes, count);
+    }
+
+    //Returns false if the browser definitely doesn't have this prefix
+    public boolean mightContain(String prefix) {
+        //FNV-1a with two offset bases, combined by double hashing
+        int h1 = 0x811c9dc5;
+        int h2 = 0x2f1a9d3b;
+        for(int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            h1 = (h1 ^ c) * 0x01000193;
+            h2 = (h2 ^ c) * 0x01000193;
+        }
+        h2 |= 1;
+        for(int i = 0; i < hashes; i++) {
+            int bit = (int)(Integer.toUnsignedLong(h1 + i*h2) % size);
+            if((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //True if the browser has no complete prefixes, such as right after the page loads
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * ReadinessServlet tells the load balancer whether this app server has warmed
+ * up. It returns 503 until warm-up finishes and 200 afterwards, along with how
+ * long warm-up took.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.io.IOException;
+import javax.inject.Inject;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@WebServlet("/ready")
+public class ReadinessServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    @Inject
+    private SessionHandler sessionHandler;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(sessionHandler.isReady() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        //Only readiness, since anyone who can reach the server can ask
+        response.getWriter().write(sessionHandler.getReadiness().toString());
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * SearchRoots searches several base distinguished names at once, which can be
+ * in different domains of the forest on different domain controllers. Each
+ * root is searched on its own executor thread. A single user lookup takes the
+ * first root in the configured order that has the user, since a username is
+ * only unique within a domain, and cancels the branches that haven't started.
+ * Reports and suggestions merge every root's results and drop duplicate
+ * usernames.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+
+public class SearchRoots {
+    //How long to wait for the executor to start a root before searching it on the calling thread
+    private static final long HELP_DELAY = 50;
+
+    private final List<Root> roots;
+    private final Executor executor;
+
+    //The most milliseconds to wait for every root to answer
+    private final long timeout;
+
+    public SearchRoots(List<Root> roots, Executor executor, long timeout) {
+        this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+        this.executor = executor;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Reads the searchRoots setting, a list of roots separated by semicolons.
+     * Each root is a connection string and a base distinguished name separated
+     * by a bar, or just a base distinguished name on the default connection.
+     *
+     *   searchRoots=ldaps://dc1.a.example.com:636|OU=Staff,DC=a,DC=example,DC=com;DC=b,DC=example,DC=com
+     *
+     * @param  setting           the setting, or null to only search the default root
+     * @param  defaultConnection the connection string used when a root doesn't have one
+     * @param  defaultBase       the base distinguished name searched when there is no setting
+     * @param  executor          runs the searches of each root
+     * @param  timeout           the most milliseconds to wait for every root to answer
+     */
+    public static SearchRoots parse(String setting, String defaultConnection, String defaultBase, Executor executor, long timeout) {
+        List<Root> roots = new ArrayList<>();
+        if(setting != null) {
+            for(String root : setting.split(";")) {
+                root = root.trim();
+                if(root.isEmpty()) {
+                    continue;
+                }
+                int bar = root.indexOf('|');
+                if(bar < 0) {
+                    roots.add(new Root(defaultConnection, root));
+                }
+                else {
+                    roots.add(new Root(root.substring(0, bar).trim(), root.substring(bar+1).trim()));
+                }
+            }
+        }
+        if(roots.isEmpty()) {
+            roots.add(new Root(defaultConnection, defaultBase));
+        }
+        return new SearchRoots(roots, executor, timeout);
+    }
+
+    public List<Root> getRoots() {
+        return roots;
+    }
+
+    //The lookups with query's credentials on every root, in the same order as the roots
+    public List<ADLookup> lookups(ADLookup query) {
+        return query.onRoots(roots);
+    }
+
+    /**
+     * Reads some attributes of a user from the first root that has the user.
+     * The root and distinguished name found are returned too, so later reads
+     * and changes go to the same account without searching again.
+     *
+     * @param  query      the lookup whose credentials are used
+     * @param  attributes the attributes to read
+     * @param  user       the sAMAccountName of the user
+     * @return            the account found, or null if no root has the user
+     */
+    public Match searchFirst(ADLookup query, String[] attributes, String user) throws NamingException {
+        String[] withDistName = Arrays.copyOf(attributes, attributes.length+1);
+        withDistName[attributes.length] = "distinguishedName";
+        return first(lookups(query), (lookup) -> {
+            String[] values = lookup.searchOrThrow(withDistName, user);
+            return values == null ? null : new Match(lookup, values[attributes.length], Arrays.copyOf(values, attributes.length));
+        });
+    }
+
+    /**
+     * Runs a paged search on every root at once. Pages are passed to the
+     * handler one at a time, without entries whose first attribute, normally
+     * sAMAccountName, was already passed from another root.
+     *
+     * @param  query      the lookup whose credentials are used
+     * @param  filter     the LDAP search filter
+     * @param  attributes the attributes to read for each entry, starting with the one to de-duplicate on
+     * @param  pageSize   the number of entries to request per page
+     * @param  handler    receives each page of results
+     * @return            the number of distinct entries passed to the handler
+     */
+    public int searchPaged(ADLookup query, String filter, String[] attributes, int pageSize, ADLookup.PageHandler handler) throws NamingException {
+        List<ADLookup> lookups = lookups(query);
+        if(lookups.size() == 1) {
+            return lookups.get(0).searchPaged(filter, attributes, pageSize, handler);
+        }
+        Set<String> seen = new HashSet<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        ADLookup.PageHandler merged = (page) -> {
+            synchronized(seen) {
+                if(stopped.get()) {
+                    return false;
+                }
+                List<String[]> distinct = new ArrayList<>(page.size());
+                for(String[] entry : page) {
+                    if(seen.add(entry[0].toLowerCase(Locale.ROOT))) {
+                        distinct.add(entry);
+                    }
+                }
+                if(!distinct.isEmpty() && !handler.handlePage(distinct)) {
+                    //Let the other roots stop at their next page too
+                    stopped.set(true);
+                }
+                return !stopped.get();
+            }
+        };
+        all(lookups, (lookup) -> lookup.searchPaged(filter, attributes, pageSize, merged));
+        synchronized(seen) {
+            return seen.size();
+        }
+    }
+
+    /**
+     * Finds the distinguished names of many users on every root at once. A
+     * user found on more than one root belongs to the first of them.
+     *
+     * @param  query     the lookup whose credentials are used
+     * @param  usernames the sAMAccountNames to find
+     * @param  pageSize  the number of entries to request per page
+     * @return           for each root with any of the users, the distinguished names by lowercase sAMAccountName
+     */
+    public Map<ADLookup,Map<String,String>> findDistinguishedNames(ADLookup query, Collection<String> usernames, int pageSize) throws NamingException {
+        List<ADLookup> lookups = lookups(query);
+        List<Map<String,String>> found = all(lookups, (lookup) -> lookup.findDistinguishedNames(usernames, pageSize));
+        Map<ADLookup,Map<String,String>> byRoot = new LinkedHashMap<>();
+        Set<String> claimed = new HashSet<>();
+        for(int i = 0; i < lookups.size(); i++) {
+            Map<String,String> distNames = new LinkedHashMap<>();
+            for(Map.Entry<String,String> entry : found.get(i).entrySet()) {
+                if(claimed.add(entry.getKey())) {
+                    distNames.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if(!distNames.isEmpty()) {
+                byRoot.put(lookups.get(i), distNames);
+            }
+        }
+        return byRoot;
+    }
+
+    /**
+     * Runs a search on every root at once and waits for all of them. The
+     * calling thread searches the first root, then any root the executor
+     * hasn't started yet, so this finishes even if every executor thread is
+     * a caller waiting like this one.
+     *
+     * @param  lookups the lookups for each root
+     * @param  search  the search to run on each root
+     * @return         each root's result in the same order as lookups
+     */
+    public <T> List<T> all(List<ADLookup> lookups, RootSearch<T> search) throws NamingException {
+        if(lookups.size() == 1) {
+            return Collections.singletonList(run(0, lookups.get(0), search));
+        }
+        List<Branch<T>> branches = fork(lookups, search, 1);
+        long deadline = System.currentTimeMillis()+timeout;
+        try {
+            List<T> results = new ArrayList<>(lookups.size());
+            results.add(run(0, lookups.get(0), search));
+            for(Branch<T> branch : branches) {
+                branch.run();
+            }
+            for(Branch<T> branch : branches) {
+                results.add(await(branch.result, deadline));
+            }
+            return results;
+        } finally {
+            //Nothing more is needed from the other roots once one of them failed
+            cancel(branches);
+        }
+    }
+
+    /**
+     * Runs a search on every root at once and returns the result of the
+     * first root, in the configured order, that has one. A later root's
+     * result is only used once every earlier root has answered without one,
+     * so the same name always resolves to the same account. Roots after the
+     * one that answered are skipped if they haven't started. An error on an
+     * earlier root fails the search, since that root might have had a
+     * different account with the name.
+     *
+     * If the executor hasn't started a root after a moment, the calling
+     * thread searches it instead, so a busy executor can't stall the lookup.
+     *
+     * @param  lookups the lookups for each root
+     * @param  search  the search to run on each root, returning null if the root doesn't have the answer
+     * @return         the first root's result, or null if no root found one
+     */
+    public <T> T first(List<ADLookup> lookups, RootSearch<T> search) throws NamingException {
+        if(lookups.size() == 1) {
+            return run(0, lookups.get(0), search);
+        }
+        List<Branch<T>> branches = fork(lookups, search, 0);
+        long deadline = System.currentTimeMillis()+timeout;
+        try {
+            for(Branch<T> branch : branches) {
+                //Give the executor a moment to start the root before searching it here
+                if(!waitFor(branch.result, Math.min(HELP_DELAY, deadline-System.currentTimeMillis()))) {
+                    branch.run();
+                }
+                T result = await(branch.result, deadline);
+                if(result != null) {
+                    roots.get(branch.index).matches.incrementAndGet();
+                    return result;
+                }
+            }
+            return null;
+        } finally {
+            cancel(branches);
+        }
+    }
+
+    //Creates a branch for each root from the first index and hands them to the executor
+    private <T> List<Branch<T>> fork(List<ADLookup> lookups, RootSearch<T> search, int from) {
+        List<Branch<T>> branches = new ArrayList<>(lookups.size());
+        for(int i = from; i < lookups.size(); i++) {
+            Branch<T> branch = new Branch<>(i, lookups.get(i), search);
+            branches.add(branch);
+            try {
+                executor.execute(branch);
+            } catch(RejectedExecutionException ex) {
+                //The calling thread will search this root
+            }
+        }
+        return branches;
+    }
+
+    //Returns the result or throws its error, giving up at the deadline
+    private <T> T await(CompletableFuture<T> future, long deadline) throws NamingException {
+        long wait = deadline-System.currentTimeMillis();
+        try {
+            return future.get(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+        } catch(TimeoutException ex) {
+            throw new TimeLimitExceededException("Search roots didn't answer within " + timeout + "ms");
+        } catch(ExecutionException ex) {
+            throw namingException(ex.getCause());
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted while searching. " + ex);
+        }
+    }
+
+    //Waits a little while and returns true if the future is done. Its result or error is read with await.
+    private static boolean waitFor(CompletableFuture<?> future, long wait) throws NamingException {
+        try {
+            future.get(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+        } catch(TimeoutException | ExecutionException | CancellationException ex) {
+            //Not done yet, or await will throw the error
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted while searching. " + ex);
+        }
+        return future.isDone();
+    }
+
+    //Runs one root's search and counts it
+    private <T> T run(int index, ADLookup lookup, RootSearch<T> search) throws NamingException {
+        Root root = roots.get(index);
+        root.searches.incrementAndGet();
+        try {
+            return search.search(lookup);
+        } catch(NamingException | RuntimeException ex) {
+            root.errors.incrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Skips the branches that haven't started. A search already sent to a
+     * domain controller finishes on its own, bounded by the read timeout.
+     *
+     * @param  branches the branches to cancel
+     */
+    private <T> void cancel(List<Branch<T>> branches) {
+        for(Branch<T> branch : branches) {
+            if(branch.claimed.compareAndSet(false, true)) {
+                branch.result.cancel(false);
+                roots.get(branch.index).cancelled.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * One root's search. Whichever of an executor thread or the calling
+     * thread claims it first runs it, and the other does nothing.
+     */
+    private class Branch<T> implements Runnable {
+        private final int index;
+        private final ADLookup lookup;
+        private final RootSearch<T> search;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Branch(int index, ADLookup lookup, RootSearch<T> search) {
+            this.index = index;
+            this.lookup = lookup;
+            this.search = search;
+        }
+
+        @Override
+        public void run() {
+            if(!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                result.complete(SearchRoots.this.run(index, lookup, search));
+            } catch(Throwable ex) {
+                //Every branch must finish so callers waiting on it don't hang
+                result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static NamingException namingException(Throwable cause) {
+        if(cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if(cause instanceof NamingException) {
+            return (NamingException)cause;
+        }
+        NamingException ex = new NamingException("Search failed. " + cause);
+        ex.setRootCause(cause);
+        return ex;
+    }
+
+    /**
+     * A user found by searchFirst, with the root it was found on.
+     */
+    public static class Match {
+        private final ADLookup lookup;
+        private final String distName;
+        private final String[] values;
+
+        Match(ADLookup lookup, String distName, String[] values) {
+            this.lookup = lookup;
+            this.distName = distName;
+            this.values = values;
+        }
+
+        //The lookup for the root that has the user
+        public ADLookup getLookup() {
+            return lookup;
+        }
+
+        public String getDistName() {
+            return distName;
+        }
+
+        //The attributes read, in the order they were asked for
+        public String[] getValues() {
+            return values;
+        }
+    }
+
+    public interface RootSearch<T> {
+        //Return null if this root doesn't have the answer
+        T search(ADLookup lookup) throws NamingException;
+    }
+
+    public static class Root {
+        private final String connectionStr;
+        private final String baseDN;
+
+        //Counted for the status page
+        private final AtomicLong searches = new AtomicLong();
+        private final AtomicLong matches = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+
+        public Root(String connectionStr, String baseDN) {
+            this.connectionStr = connectionStr;
+            this.baseDN = baseDN;
+        }
+
+        public String getConnectionStr() {
+            return connectionStr;
+        }
+
+        public String getBaseDN() {
+            return baseDN;
+        }
+
+        public long getSearches() {
+            return searches.get();
+        }
+
+        //The number of single user lookups this root answered
+        public long getMatches() {
+            return matches.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        //The number of searches skipped because the answer was already known
+        public long getCancelled() {
+            return cancelled.get();
+        }
+    }
+}
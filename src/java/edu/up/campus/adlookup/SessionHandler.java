@@ -8,46 +8,66 @@
 package edu.up.campus.adlookup;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
+import java.util.Collections;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.TimeZone;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.websocket.Session;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
 import javax.json.spi.JsonProvider;
+import javax.naming.CommunicationException;
 import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
 import javax.sql.DataSource;
-import net.jodah.expiringmap.ExpiringMap;
-import net.jodah.expiringmap.ExpiringMap.ExpirationPolicy;
 
 @ApplicationScoped
 public class SessionHandler {
 
     //A set of the active sessions
     private final Set<Session> sessions = new HashSet<>();
-    private final Map<String,LoginSession> loginSessions;
+    private final SessionStore loginSessions;
     
     //The attributes to read from the domain controller
     private final String[] attributes = new String[]{
@@ -61,19 +81,21 @@ public class SessionHandler {
                 "mailNickname",
                 "lockoutTime",
                 "badPwdCount",
-                "MemberOf",
                 "userPrincipalName",
                 "userAccountControl"
             };
     
+    //The attributes above and the username as the domain controller spells it
+    private final String[] userAttributes;
+    
     //The number of days before a password expires
     private final int pwdDuration;
     
     //The email address domain
     private final String domain;
     
-    //The format to use for all datetimes
-    private final SimpleDateFormat dateformat = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a");
+    //The format to use for all datetimes. SimpleDateFormat isn't thread safe, so each thread gets its own
+    private final ThreadLocal<SimpleDateFormat> dateformat = ThreadLocal.withInitial(() -> new SimpleDateFormat("MM/dd/yyyy hh:mm:ss a"));
     
     //The LDAPS connection string. In order for LDAPS to work, the UPRoot
     //certificate needs to be imported to <glassfish_home>/glassfish/domains/domain1/config/cacerts.jks
@@ -98,9 +120,6 @@ public class SessionHandler {
     //The number of search results to process at a time
     private final int maxResults;
     
-    //The regex pattern that extracts a simple username from a distinguished name
-    private final Pattern cnPattern = Pattern.compile("(?m)^CN=(.*?),");
-    
     //A JSONProvider for use when creating JSON messages
     private final JsonProvider provider = JsonProvider.provider();
     
@@ -118,6 +137,140 @@ public class SessionHandler {
     
     private DataSource ds;
     
+    private ScheduledExecutorService ses;
+    
+    //Whether warm-up has finished and the load balancer can send users here
+    private volatile boolean ready = false;
+    
+    //The number of milliseconds warm-up took in total and in each phase
+    private volatile long warmupTime = -1;
+    private final Map<String,Long> warmupPhases = Collections.synchronizedMap(new LinkedHashMap<>());
+    
+    //The number of database and LDAP connections to open during warm-up
+    private final int warmupConnections;
+    
+    //The number of times to repeat the in-memory part of the warm-up workload
+    private final int warmupIterations;
+    
+    //Where LoginSessions are kept: "memory" or "jdbc" to share them between app servers
+    private final String sessionStoreType;
+    
+    //The name of the JNDI resource for the database that stores LoginSessions
+    private final String sessionJndiName;
+    
+    //The base64 encoded AES key used to encrypt stored passwords
+    private final String sessionKey;
+    
+    //The number of milliseconds to keep an unused stored LoginSession in memory
+    private final long sessionCacheTimeout;
+    
+    //The number of milliseconds between batched writes of LoginSession access times
+    private final long sessionFlushInterval;
+    
+    //Finds people by username, display name, email, or employee ID
+    private volatile PeopleIndex peopleIndex = new PeopleIndex();
+    
+    //The number of milliseconds between updates of the people index, or 0 to disable it
+    private final long indexRefresh;
+    
+    //When the people index was last fully loaded and last updated
+    private long indexLoaded = 0;
+    private long indexUpdated = 0;
+    
+    //The number of accounts a bulk unlock modifies at the same time
+    private final int unlockParallelism;
+    //The most accounts one bulk unlock may ask for
+    private final int bulkUnlockMax;
+    
+    //Sends lockouts to the sessions watching those accounts
+    private final LockoutWatcher lockoutWatcher;
+    
+    //The number of milliseconds between searches for new lockouts
+    private final long watchInterval;
+    
+    //Short names and parents of every group shown so far
+    private final GroupCache groupCache;
+    
+    //Whether to also show groups a user is in through nested membership
+    private final boolean nestedGroups;
+    
+    //The number of milliseconds to keep a group's parents before reading them again
+    private final long groupCacheTTL;
+    
+    //Limits the memory used to remember which suggestions each browser has
+    private final SuggestionBudget suggestionBudget;
+    
+    //The most prefixes a browser lost to send again after its manifest
+    private static final int RESEND_PREFIXES = 8;
+    
+    //How often each user is looked up, used to rank suggestions
+    private final UserPopularity popularity = new UserPopularity();
+    
+    //Where audit events are stored: "file", "jdbc", or "none"
+    private final String auditType;
+    
+    //The directory for audit files and the size at which a new file is started
+    private final String auditDir;
+    private final long auditMaxBytes;
+    
+    //The name of the JNDI resource for the database that stores audit events
+    private final String auditJndiName;
+    
+    //The number of audit events that can wait to be written before new ones are dropped
+    private final int auditBufferSize;
+    
+    //The number of milliseconds to collect audit events into one write
+    private final long auditFlushMillis;
+    
+    //Records logins, lookups, and unlocks, or null if auditing is disabled
+    private AuditLog auditLog;
+    
+    //Fail fast instead of waiting on timeouts while the database or domain controller is down
+    private final CircuitBreaker sqlBreaker;
+    private final CircuitBreaker ldapBreaker;
+    
+    //The last good answers, shown as stale while their backend is down
+    private final StaleCache<JsonObject> staleUserInfo;
+    private final StaleCache<JsonObject> staleGroups;
+    private final StaleCache<List<String>> staleSuggestions;
+    
+    //Where ranked suggestions come from: "jdbc" for the users table or "ldap" for the domain controller
+    private final String suggestionBackendType;
+    
+    //Whether warm-up compares the latency and load of both suggestion backends
+    private final boolean suggestionBenchmark;
+    
+    //Finds usernames by prefix for ranked suggestions, and the breaker of the backend it uses
+    private SuggestionBackend suggestionBackend;
+    private CircuitBreaker suggestionBreaker;
+    
+    //The results of the suggestion backend benchmark, or null if it wasn't run
+    private volatile JsonObject benchmark;
+    
+    //The base distinguished names to search, possibly in other domains, as connectionStr|baseDN;connectionStr|baseDN
+    private final String searchRootsSetting;
+    
+    //Searches every root at once. Only the default root is searched if none are configured.
+    private SearchRoots searchRoots;
+    
+    //The most milliseconds to wait for every search root to answer
+    private final long searchTimeout;
+    
+    //The absolute path of the snapshot of the users table, or null to not keep one
+    private final String snapshotFile;
+    
+    //The milliseconds between refreshes of the snapshot
+    private final long snapshotRefresh;
+    
+    //Answers suggestions from the mapped snapshot, or null if there is no snapshotFile
+    private SnapshotSuggestionBackend usernameSnapshot;
+    
+    //Only trips when there is no snapshot yet and the users table is searched instead
+    private final CircuitBreaker snapshotBreaker;
+    
+    //The format LDAP uses for whenChanged
+    private final SimpleDateFormat generalizedTime = new SimpleDateFormat("yyyyMMddHHmmss'.0Z'");
+    
     /**
      * Constructor for SessionHandler. Loads settings from settings.properties.
      * If the file is not found in the classpath, it uses default values
@@ -126,6 +279,8 @@ public class SessionHandler {
      */
     public SessionHandler() {
         ResourceBundle settings = ResourceBundle.getBundle("settings");
+        userAttributes = Arrays.copyOf(attributes, attributes.length+1);
+        userAttributes[attributes.length] = "sAMAccountName";
 
         if(settings != null && settings.containsKey("pwdDuration")) {
             pwdDuration = Integer.parseInt(settings.getString("pwdDuration"));
@@ -211,125 +366,809 @@ public class SessionHandler {
             maxPages = 2;
             System.out.println("Using default max page size");
         }
+        if(settings != null && settings.containsKey("sessionStore")) {
+            sessionStoreType = settings.getString("sessionStore");
+        }
+        else {
+            sessionStoreType = "memory";
+        }
+        if(settings != null && settings.containsKey("sessionJndiName")) {
+            sessionJndiName = settings.getString("sessionJndiName");
+        }
+        else {
+            sessionJndiName = jndiDBName;
+        }
+        if(settings != null && settings.containsKey("sessionKey")) {
+            sessionKey = settings.getString("sessionKey");
+        }
+        else {
+            sessionKey = null;
+        }
+        if(settings != null && settings.containsKey("sessionCacheTimeout")) {
+            sessionCacheTimeout = Long.parseLong(settings.getString("sessionCacheTimeout"))*1000;
+        }
+        else {
+            sessionCacheTimeout = TimeUnit.MINUTES.toMillis(1);
+        }
+        if(settings != null && settings.containsKey("sessionFlushInterval")) {
+            sessionFlushInterval = Long.parseLong(settings.getString("sessionFlushInterval"))*1000;
+        }
+        else {
+            sessionFlushInterval = TimeUnit.SECONDS.toMillis(10);
+        }
+        if(settings != null && settings.containsKey("indexRefresh")) {
+            indexRefresh = Long.parseLong(settings.getString("indexRefresh"))*1000;
+        }
+        else {
+            indexRefresh = TimeUnit.MINUTES.toMillis(5);
+            System.out.println("Using default people index refresh");
+        }
+        if(settings != null && settings.containsKey("unlockParallelism")) {
+            unlockParallelism = Integer.parseInt(settings.getString("unlockParallelism"));
+        }
+        else {
+            unlockParallelism = 4;
+        }
+        if(settings != null && settings.containsKey("bulkUnlockMax")) {
+            bulkUnlockMax = Integer.parseInt(settings.getString("bulkUnlockMax"));
+        }
+        else {
+            bulkUnlockMax = 1000;
+        }
+        if(settings != null && settings.containsKey("watchInterval")) {
+            watchInterval = Long.parseLong(settings.getString("watchInterval"))*1000;
+        }
+        else {
+            watchInterval = TimeUnit.SECONDS.toMillis(15);
+        }
+        if(settings != null && settings.containsKey("nestedGroups")) {
+            nestedGroups = Boolean.parseBoolean(settings.getString("nestedGroups"));
+        }
+        else {
+            nestedGroups = false;
+        }
+        if(settings != null && settings.containsKey("groupCacheTTL")) {
+            groupCacheTTL = Long.parseLong(settings.getString("groupCacheTTL"))*1000;
+        }
+        else {
+            groupCacheTTL = TimeUnit.HOURS.toMillis(1);
+        }
+        long suggestionBudgetBytes;
+        long suggestionSessionBytes;
+        if(settings != null && settings.containsKey("suggestionBudgetBytes")) {
+            suggestionBudgetBytes = Long.parseLong(settings.getString("suggestionBudgetBytes"));
+        }
+        else {
+            suggestionBudgetBytes = 16L*1024*1024;
+        }
+        if(settings != null && settings.containsKey("suggestionSessionBytes")) {
+            suggestionSessionBytes = Long.parseLong(settings.getString("suggestionSessionBytes"));
+        }
+        else {
+            suggestionSessionBytes = 256L*1024;
+        }
+        //Cached prefixes expire individually after the old periodic clearing interval
+        suggestionBudget = new SuggestionBudget(suggestionBudgetBytes, suggestionSessionBytes, timeout/2);
+        if(settings != null && settings.containsKey("warmupConnections")) {
+            warmupConnections = Integer.parseInt(settings.getString("warmupConnections"));
+        }
+        else {
+            warmupConnections = 8;
+        }
+        if(settings != null && settings.containsKey("warmupIterations")) {
+            warmupIterations = Integer.parseInt(settings.getString("warmupIterations"));
+        }
+        else {
+            warmupIterations = 200;
+        }
+        if(settings != null && settings.containsKey("audit")) {
+            auditType = settings.getString("audit");
+        }
+        else {
+            auditType = "file";
+        }
+        if(settings != null && settings.containsKey("auditDir")) {
+            auditDir = settings.getString("auditDir");
+        }
+        else {
+            auditDir = "audit";
+        }
+        if(settings != null && settings.containsKey("auditMaxBytes")) {
+            auditMaxBytes = Long.parseLong(settings.getString("auditMaxBytes"));
+        }
+        else {
+            auditMaxBytes = 64L*1024*1024;
+        }
+        if(settings != null && settings.containsKey("auditJndiName")) {
+            auditJndiName = settings.getString("auditJndiName");
+        }
+        else {
+            auditJndiName = jndiDBName;
+        }
+        if(settings != null && settings.containsKey("auditBufferSize")) {
+            auditBufferSize = Integer.parseInt(settings.getString("auditBufferSize"));
+        }
+        else {
+            auditBufferSize = 8192;
+        }
+        if(settings != null && settings.containsKey("auditFlushMillis")) {
+            auditFlushMillis = Long.parseLong(settings.getString("auditFlushMillis"));
+        }
+        else {
+            auditFlushMillis = 200;
+        }
+        int breakerFailures;
+        long breakerOpenTime;
+        int staleCacheSize;
+        if(settings != null && settings.containsKey("breakerFailures")) {
+            breakerFailures = Integer.parseInt(settings.getString("breakerFailures"));
+        }
+        else {
+            breakerFailures = 5;
+        }
+        if(settings != null && settings.containsKey("breakerOpenTime")) {
+            breakerOpenTime = Long.parseLong(settings.getString("breakerOpenTime"))*1000;
+        }
+        else {
+            breakerOpenTime = TimeUnit.SECONDS.toMillis(30);
+        }
+        if(settings != null && settings.containsKey("staleCacheSize")) {
+            staleCacheSize = Integer.parseInt(settings.getString("staleCacheSize"));
+        }
+        else {
+            staleCacheSize = 5000;
+        }
+        if(settings != null && settings.containsKey("suggestionBackend")) {
+            suggestionBackendType = settings.getString("suggestionBackend");
+        }
+        else {
+            //Rank suggestions from the snapshot whenever one is kept
+            suggestionBackendType = settings != null && settings.containsKey("snapshotFile") ? "snapshot" : "jdbc";
+        }
+        if(settings != null && settings.containsKey("suggestionBenchmark")) {
+            suggestionBenchmark = Boolean.parseBoolean(settings.getString("suggestionBenchmark"));
+        }
+        else {
+            suggestionBenchmark = false;
+        }
+        if(settings != null && settings.containsKey("searchRoots")) {
+            searchRootsSetting = settings.getString("searchRoots");
+        }
+        else {
+            searchRootsSetting = null;
+        }
+        if(settings != null && settings.containsKey("searchTimeout")) {
+            searchTimeout = Long.parseLong(settings.getString("searchTimeout"))*1000;
+        }
+        else {
+            searchTimeout = TimeUnit.SECONDS.toMillis(60);
+        }
+        if(settings != null && settings.containsKey("snapshotFile") && Paths.get(settings.getString("snapshotFile")).isAbsolute()) {
+            snapshotFile = settings.getString("snapshotFile");
+        }
+        else {
+            snapshotFile = null;
+            if(settings != null && settings.containsKey("snapshotFile")) {
+                System.err.println("snapshotFile must be an absolute path. Not keeping a username snapshot.");
+            }
+        }
+        if(settings != null && settings.containsKey("snapshotRefresh")) {
+            snapshotRefresh = Long.parseLong(settings.getString("snapshotRefresh"))*1000;
+        }
+        else {
+            snapshotRefresh = TimeUnit.HOURS.toMillis(1);
+        }
+        sqlBreaker = new CircuitBreaker("sql", breakerFailures, breakerOpenTime);
+        snapshotBreaker = new CircuitBreaker("snapshot", breakerFailures, breakerOpenTime);
+        ldapBreaker = new CircuitBreaker("ldap", breakerFailures, breakerOpenTime);
+        staleUserInfo = new StaleCache<>(staleCacheSize);
+        staleGroups = new StaleCache<>(staleCacheSize);
+        staleSuggestions = new StaleCache<>(staleCacheSize);
+        generalizedTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        groupCache = new GroupCache(groupCacheTTL);
         
-        //Create map that expires old LoginSessions
-        loginSessions = ExpiringMap.builder()
-            .expiration(timeout, TimeUnit.MILLISECONDS)
-            .expirationPolicy(ExpirationPolicy.ACCESSED)
-            .build();
+        lockoutWatcher = new LockoutWatcher((session, username, lockoutTime) -> {
+            JsonObject message = provider.createObjectBuilder()
+                    .add("action", "lockoutalert")
+                    .add("user", username)
+                    .add("lockouttime", fileTimeToDateTime(lockoutTime))
+                    .build();
+            sendToSession(session, message);
+        });
         
         //Use JNDI resources to prevent memory leaks and let the glassfish server manage resources
+        SessionStore store = null;
         try {
             InitialContext ctx = new InitialContext();
+            ses = (ScheduledExecutorService)ctx.lookup("concurrent/__defaultManagedScheduledExecutorService");
             
+            //Find the ManagedExecutorService to use for submitting asynchronous tasks
+            execService = (ExecutorService)ctx.lookup("concurrent/__defaultManagedExecutorService");
+            
+            //The DB connection is tested during warm-up
+            ds = (DataSource) ctx.lookup(jndiDBName);
+            
+            //Share LoginSessions through the database so they survive restarts
+            if("jdbc".equalsIgnoreCase(sessionStoreType) && sessionKey == null) {
+                System.err.println("sessionStore=jdbc needs a sessionKey shared by every app server. Keeping login sessions in memory.");
+            }
+            else if("jdbc".equalsIgnoreCase(sessionStoreType)) {
+                DataSource sessionDs = (DataSource) ctx.lookup(sessionJndiName);
+                byte[] keyBytes = Base64.getDecoder().decode(sessionKey);
+                store = new JdbcSessionStore(sessionDs, ses, connectionStr, baseDN, timeout, sessionCacheTimeout, sessionFlushInterval, keyBytes);
+                System.out.println("Storing login sessions in "+sessionJndiName);
+            }
+        } catch (SQLException ex) {
+            System.out.println("DB connection failed. "+ex);
+        } catch(NamingException ex) {
+            System.out.println("Couldn't find JNDI resource. "+ex);
+        } catch(GeneralSecurityException | IllegalArgumentException ex) {
+            System.err.println("Invalid session key. "+ex);
+        }
+        
+        openAuditLog();
+        
+        //Search each root on its own thread and use the first answer
+        searchRoots = SearchRoots.parse(searchRootsSetting, connectionStr, baseDN, execService == null ? Runnable::run : execService, searchTimeout);
+        System.out.println("Searching "+searchRoots.getRoots().size()+" search roots");
+        
+        //Open the last snapshot of the users table so suggestions don't wait for the database
+        if(snapshotFile != null) {
+            usernameSnapshot = new SnapshotSuggestionBackend(snapshotFile, ds, maxResults*maxPages);
+        }
+        
+        //Read suggestions from the domain controller when the users table isn't kept up to date
+        if("ldap".equalsIgnoreCase(suggestionBackendType)) {
+            suggestionBackend = newLdapSuggestionBackend();
+            suggestionBreaker = ldapBreaker;
+        }
+        else if("snapshot".equalsIgnoreCase(suggestionBackendType) && usernameSnapshot != null) {
+            suggestionBackend = usernameSnapshot;
+            suggestionBreaker = snapshotBreaker;
+        }
+        else {
+            suggestionBackend = new JdbcSuggestionBackend(ds, maxResults*maxPages);
+            suggestionBreaker = sqlBreaker;
+        }
+        System.out.println("Using the "+suggestionBackend.getName()+" suggestion backend");
+        
+        //Keep LoginSessions in memory if they can't be shared
+        if(store == null) {
+            store = new MemorySessionStore(timeout);
+        }
+        loginSessions = store;
+        
+        if(ses != null) {
             //Schedule a ping task
-            ScheduledExecutorService ses = (ScheduledExecutorService)ctx.lookup("concurrent/__defaultManagedScheduledExecutorService");
             ses.scheduleWithFixedDelay(() -> {
                 JsonObject message = provider.createObjectBuilder()
                         .add("action","keepalive")
                         .build();
                 sessions.forEach((session) -> {
                     sendToSession(session,message);
-                    
-                    //Clear search suggestion info periodically due to browser storage clearing
-                    if(loginSessions.containsKey(session.getId())) {
-                        ADLookup query = loginSessions.get(session.getId()).getQuery();
-                        query.completedSearches.clear();
-                        query.incompleteSearches.clear();
-                    }
                 });
             }, timeout/2, timeout/2, TimeUnit.MILLISECONDS);
             
-            //Find the ManagedExecutorService to use for submitting asynchronous tasks
-            execService = (ExecutorService)ctx.lookup("concurrent/__defaultManagedExecutorService");
-            
-            //Test the DB connection
-            ds = (DataSource) ctx.lookup(jndiDBName);
-            Connection conn = ds.getConnection();
-            conn.close();
+            //Let recent lookups count more than old ones
+            ses.scheduleWithFixedDelay(popularity::decay, 1, 1, TimeUnit.DAYS);
             
-        } catch (SQLException ex) {
-            System.out.println("DB connection failed. "+ex);
-        } catch(NamingException ex) {
-            System.out.println("Couldn't find JNDI resource. "+ex);
+            //One search for new lockouts serves every watching session
+            ses.scheduleWithFixedDelay(this::pollLockouts, watchInterval, watchInterval, TimeUnit.MILLISECONDS);
         }
     }
     
-    public void addSession(Session session) {
-        session.setMaxIdleTimeout(timeout);
-        sessions.add(session);
-    }
-
-    public void removeSession(Session session) {
-        //Keep loginsession because its token could be used later
-        if(session != null) {
-            LoginSession loginSession = loginSessions.get(session.getId());
-            if(loginSession != null) {
-                loginSession.deleteSession();
+    /**
+     * Starts the audit writer on a managed thread with the configured sink.
+     */
+    private void openAuditLog() {
+        if("none".equalsIgnoreCase(auditType)) {
+            return;
+        }
+        ThreadFactory threadFactory;
+        AuditSink sink;
+        try {
+            InitialContext ctx = new InitialContext();
+            threadFactory = (ThreadFactory)ctx.lookup("concurrent/__defaultManagedThreadFactory");
+        } catch(NamingException ex) {
+            System.out.println("Couldn't find JNDI resource. "+ex);
+            threadFactory = Executors.defaultThreadFactory();
+        }
+        try {
+            if("jdbc".equalsIgnoreCase(auditType)) {
+                DataSource auditDs = (DataSource) new InitialContext().lookup(auditJndiName);
+                sink = new JdbcAuditSink(auditDs);
+                System.out.println("Writing audit events to "+auditJndiName);
             }
-            sessions.remove(session);
+            else {
+                sink = new FileAuditSink(auditDir, auditMaxBytes);
+                System.out.println("Writing audit events to "+auditDir);
+            }
+        } catch(IOException | SQLException | NamingException ex) {
+            System.err.println("Couldn't open audit log. Auditing is disabled! "+ex);
+            return;
         }
+        auditLog = new AuditLog(sink, auditBufferSize, 256, auditFlushMillis, threadFactory);
     }
-    public void removeLoginSession(Session session) {
-        loginSessions.remove(session.getId());
-        sessions.remove(session);
+    
+    private LdapSuggestionBackend newLdapSuggestionBackend() {
+        return new LdapSuggestionBackend(connectionStr, serviceUser, servicePass, baseDN, searchRoots, maxResults, maxResults*maxPages);
     }
     
-    //Reference LoginSession to prevent expiration
-    public void keepLoginSession(Session session) {
-        loginSessions.get(session.getId());
+    //Queues an audit event without waiting for it to be written
+    private void audit(String action, String actor, String target, boolean success, String detail) {
+        if(auditLog != null) {
+            auditLog.record(new AuditEvent(action, actor, target, success, detail));
+        }
     }
-
-    public void login(Session session, String username, String password) {
-        //Use another thread to avoid blocking the WebSocketServer
-        execService.execute(new Runnable() {
-            @Override
-            public void run() {
-                JsonObject message = null;
-                try {
-                    if (username == null || "".equals(username) || password == null || "".equals(password)) {
-                        //System.out.println("Empty username or password");
-                        throw new Exception("Empty username or password");
-                    }
-                    //Authenticate by creating new ADLookup which does a bind
-                    ADLookup query = new ADLookup(connectionStr, username, password, baseDN, serviceUser, servicePass, authGroup);
-                    loginSessions.put(session.getId(),new LoginSession(session, query));
-                    message = provider.createObjectBuilder()
-                            .add("action", "loginresponse")
-                            .add("message", "success")
-                            .add("token", session.getId())
-                            .build();
-                    System.out.println("Login success.");
-                } catch (Exception e) {
-                    System.out.println("Login failed.\n"+e);
-                    message = provider.createObjectBuilder()
-                            .add("action", "loginresponse")
-                            .add("message", "fail")
-                            .build();
-                } finally {
-                    sendToSession(session, message);
-                }
+    
+    /**
+     * Starts warming up as soon as the application is deployed instead of when
+     * the first user connects.
+     */
+    public void onStartup(@Observes @Initialized(ApplicationScoped.class) Object init) {
+        if(execService == null) {
+            ready = true;
+            return;
+        }
+        execService.execute(() -> {
+            try {
+                warmUp();
+            } catch(RuntimeException ex) {
+                System.err.println("Warm-up failed. "+ex);
+            } finally {
+                //Serve users cold rather than never becoming ready
+                ready = true;
+                scheduleRefreshes();
             }
         });
     }
     
-    public void login(Session session, String token) {
-        execService.execute(new Runnable() {
-            @Override
-            public void run() {
-                JsonObject message = null;
-                try {
-                    System.out.println("Attempting token login.");
-                    if (token == null || "".equals(token)) {
-                        throw new Exception("Empty token");
-                    }
-                    if(token.length() != 38) {
-                        throw new Exception("Token is an invalid size");
-                    }
-                    String trimToken = token.substring(1, token.length()-1);
-                    LoginSession oldLogin = loginSessions.get(trimToken);
-                    if(oldLogin == null) {
-                        throw new Exception("Invalid token");
+    /**
+     * Opens database and LDAP connections, loads the people index and group
+     * cache, and runs the hot paths a few times so the first users after a
+     * deploy don't wait for cold pools, class loading, or the JIT.
+     * 
+     * The LDAP connections are the service account's. JNDI pools connections
+     * by credentials, so they serve logins, the LDAP suggestion backend, and
+     * the background searches that follow, but not operator lookups, which
+     * bind as the operator. Idle pooled connections close after a minute, so
+     * the ldap phase mainly measures reaching the domain controller and
+     * binding.
+     */
+    private void warmUp() {
+        long startTime = System.currentTimeMillis();
+        
+        //Fill the database pool and run the suggestion query once per letter
+        long phaseStart = System.currentTimeMillis();
+        if(ds != null && warmupConnections > 0) {
+            List<Connection> conns = new ArrayList<>();
+            try {
+                for(int i = 0; i < warmupConnections; i++) {
+                    conns.add(ds.getConnection());
+                }
+                try(PreparedStatement stmt = conns.get(0).prepareStatement(queryUser+" LIMIT "+maxResults)) {
+                    for(char letter = 'a'; letter <= 'z'; letter++) {
+                        stmt.setString(1, letter+"%");
+                        try(ResultSet rs = stmt.executeQuery()) {
+                            while(rs.next()) {
+                                rs.getString(1);
+                            }
+                        }
+                    }
+                }
+            } catch(SQLException ex) {
+                System.out.println("DB connection failed. "+ex);
+            } finally {
+                for(Connection conn : conns) {
+                    try {
+                        conn.close();
+                    } catch(SQLException ex) {}
+                }
+            }
+        }
+        warmupPhases.put("jdbc", System.currentTimeMillis()-phaseStart);
+        
+        //Open LDAP connections and load the caches
+        phaseStart = System.currentTimeMillis();
+        ADLookup serviceQuery = null;
+        try {
+            serviceQuery = new ADLookup(connectionStr, serviceUser, servicePass, baseDN);
+            serviceQuery.openConnections(warmupConnections);
+        } catch(NamingException ex) {
+            System.out.println("Couldn't connect to the domain controller. "+ex);
+        }
+        warmupPhases.put("ldap", System.currentTimeMillis()-phaseStart);
+        
+        phaseStart = System.currentTimeMillis();
+        if(indexRefresh > 0) {
+            refreshPeopleIndex();
+        }
+        if(nestedGroups) {
+            preloadGroups();
+        }
+        warmupPhases.put("preload", System.currentTimeMillis()-phaseStart);
+        
+        //Run lookups and searches for a few real users through the same code users hit
+        phaseStart = System.currentTimeMillis();
+        List<String> sample = peopleIndex.sample(20);
+        for(int i = 0; i < warmupIterations; i++) {
+            for(String username : sample) {
+                peopleIndex.search(username.substring(0, Math.min(3, username.length())), 8);
+                peopleIndex.search(username, 8);
+            }
+        }
+        if(serviceQuery != null) {
+            try {
+                for(String username : sample) {
+                    SearchRoots.Match match = searchRoots.searchFirst(serviceQuery, userAttributes, username);
+                    if(match != null) {
+                        buildUserInfo(match, username);
+                        buildUserGroups(serviceQuery, match, username);
+                    }
+                }
+            } catch(NamingException ex) {
+                System.out.println("Couldn't look up users during warm-up. "+ex);
+            }
+        }
+        warmupPhases.put("workload", System.currentTimeMillis()-phaseStart);
+        
+        if(suggestionBenchmark) {
+            phaseStart = System.currentTimeMillis();
+            benchmarkSuggestions(sample);
+            warmupPhases.put("benchmark", System.currentTimeMillis()-phaseStart);
+        }
+        
+        warmupTime = System.currentTimeMillis()-startTime;
+        System.out.println("Warm-up finished in "+warmupTime+"ms "+warmupPhases);
+    }
+    
+    /**
+     * Runs the same prefix searches against both suggestion backends and
+     * records their latency and how many queries and rows or entries each
+     * needed. New backends are used so the live statistics aren't affected.
+     * 
+     * @param  sample usernames to take prefixes from
+     */
+    private void benchmarkSuggestions(List<String> sample) {
+        Set<String> prefixes = new LinkedHashSet<>();
+        for(char letter = 'a'; letter <= 'z'; letter++) {
+            prefixes.add(Character.toString(letter));
+        }
+        for(String username : sample) {
+            for(int length = 2; length <= Math.min(4, username.length()); length++) {
+                prefixes.add(username.substring(0, length));
+            }
+        }
+        JsonObjectBuilder results = provider.createObjectBuilder()
+                .add("prefixes", prefixes.size());
+        SuggestionBackend[] backends = new SuggestionBackend[]{
+            new JdbcSuggestionBackend(ds, maxResults*maxPages),
+            newLdapSuggestionBackend()
+        };
+        for(SuggestionBackend backend : backends) {
+            List<Long> latencies = new ArrayList<>();
+            for(String prefix : prefixes) {
+                long startTime = System.nanoTime();
+                try {
+                    SuggestionBackend.Page page = backend.suggest(prefix, null, 8, true);
+                    
+                    //Also read the second page like a browser scrolling through suggestions
+                    if(page.getUsernames().size() > 8) {
+                        backend.suggest(prefix, page.getUsernames().get(7), 8, false);
+                    }
+                    latencies.add(System.nanoTime()-startTime);
+                } catch(SQLException | NamingException | RuntimeException ex) {
+                    System.out.println("The "+backend.getName()+" suggestion backend failed during the benchmark. "+ex);
+                    break;
+                }
+            }
+            Collections.sort(latencies);
+            results.add(backend.getName(), statsJson(backend)
+                    .add("p50", latencies.isEmpty() ? 0 : latencies.get(latencies.size()/2)/1e6)
+                    .add("p95", latencies.isEmpty() ? 0 : latencies.get(latencies.size()*95/100)/1e6));
+        }
+        benchmark = results.build();
+        System.out.println("Suggestion backend benchmark: "+benchmark);
+    }
+    
+    private JsonObjectBuilder statsJson(SuggestionBackend backend) {
+        SuggestionStats stats = backend.getStats();
+        JsonObjectBuilder builder = provider.createObjectBuilder()
+                .add("calls", stats.getCalls())
+                .add("errors", stats.getErrors())
+                .add("avgms", stats.getAverageMillis())
+                .add("maxms", stats.getMaxMillis())
+                .add("operations", stats.getOperations())
+                .add("entries", stats.getEntries());
+        if(backend instanceof LdapSuggestionBackend) {
+            builder.add("vlv", ((LdapSuggestionBackend)backend).isVirtualListViewSupported());
+        }
+        return builder;
+    }
+    
+    //Keeps the caches loaded by warm-up up to date
+    private void scheduleRefreshes() {
+        if(ses != null) {
+            if(nestedGroups) {
+                ses.scheduleWithFixedDelay(this::preloadGroups, groupCacheTTL, groupCacheTTL, TimeUnit.MILLISECONDS);
+            }
+            if(indexRefresh > 0) {
+                ses.scheduleWithFixedDelay(this::refreshPeopleIndex, indexRefresh, indexRefresh, TimeUnit.MILLISECONDS);
+            }
+            
+            //Only read the whole users table once the snapshot on disk is due, so a restart doesn't hit the database
+            if(usernameSnapshot != null && snapshotRefresh > 0) {
+                UsernameSnapshot snapshot = usernameSnapshot.getSnapshot();
+                long age = snapshot == null ? snapshotRefresh : System.currentTimeMillis()-snapshot.getCreated();
+                long firstRefresh = Math.max(0, snapshotRefresh-age);
+                ses.scheduleWithFixedDelay(this::refreshSnapshot, firstRefresh, snapshotRefresh, TimeUnit.MILLISECONDS);
+            }
+            else if(usernameSnapshot != null) {
+                ses.execute(this::refreshSnapshot);
+            }
+        }
+    }
+    
+    public boolean isReady() {
+        return ready;
+    }
+    
+    /**
+     * Returns the readiness and warm-up times of this app server, which is
+     * all the unauthenticated readiness check shows.
+     */
+    public JsonObject getReadiness() {
+        return provider.createObjectBuilder()
+                .add("ready", ready)
+                .add("warmup", warmupTime)
+                .add("phases", warmupPhasesJson())
+                .build();
+    }
+    
+    private JsonObjectBuilder warmupPhasesJson() {
+        JsonObjectBuilder phases = provider.createObjectBuilder();
+        synchronized(warmupPhases) {
+            for(Entry<String,Long> phase : warmupPhases.entrySet()) {
+                phases.add(phase.getKey(), phase.getValue());
+            }
+        }
+        return phases;
+    }
+    
+    /**
+     * Returns the readiness, warm-up times, caches, breakers, search roots,
+     * and suggestion statistics of this app server. This includes connection
+     * strings and base DNs, so it is only sent to logged in operators.
+     */
+    public JsonObject getStatus() {
+        JsonObjectBuilder phases = warmupPhasesJson();
+        JsonObjectBuilder audit = provider.createObjectBuilder();
+        if(auditLog != null) {
+            audit.add("backlog", auditLog.getBacklog())
+                 .add("dropped", auditLog.getDropped())
+                 .add("written", auditLog.getWritten())
+                 .add("failed", auditLog.getFailed());
+        }
+        JsonObjectBuilder breakers = provider.createObjectBuilder()
+                .add(sqlBreaker.getName(), breakerStatus(sqlBreaker))
+                .add(ldapBreaker.getName(), breakerStatus(ldapBreaker))
+                .add(snapshotBreaker.getName(), breakerStatus(snapshotBreaker));
+        JsonArrayBuilder roots = Json.createArrayBuilder();
+        for(SearchRoots.Root root : searchRoots.getRoots()) {
+            roots.add(provider.createObjectBuilder()
+                    .add("connection", root.getConnectionStr())
+                    .add("base", root.getBaseDN())
+                    .add("searches", root.getSearches())
+                    .add("matches", root.getMatches())
+                    .add("errors", root.getErrors())
+                    .add("cancelled", root.getCancelled()));
+        }
+        JsonObjectBuilder status = provider.createObjectBuilder()
+                .add("ready", ready)
+                .add("warmup", warmupTime)
+                .add("phases", phases)
+                .add("peopleindex", peopleIndex.size())
+                .add("groups", groupCache.size())
+                .add("audit", audit)
+                .add("breakers", breakers)
+                .add("searchroots", roots)
+                .add("suggestions", statsJson(suggestionBackend).add("backend", suggestionBackend.getName()))
+                .add("stale", provider.createObjectBuilder()
+                        .add("userinfo", staleUserInfo.size())
+                        .add("groups", staleGroups.size())
+                        .add("suggestions", staleSuggestions.size()));
+        if(usernameSnapshot != null) {
+            UsernameSnapshot snapshot = usernameSnapshot.getSnapshot();
+            JsonObjectBuilder snapshotStatus = provider.createObjectBuilder()
+                    .add("usernames", snapshot == null ? 0 : snapshot.size())
+                    .add("refreshms", usernameSnapshot.getRefreshTime());
+            if(snapshot != null) {
+                snapshotStatus.add("age", (System.currentTimeMillis()-snapshot.getCreated())/1000);
+            }
+            status.add("snapshot", snapshotStatus);
+        }
+        JsonObject results = benchmark;
+        if(results != null) {
+            status.add("benchmark", results);
+        }
+        return status.build();
+    }
+    
+    private JsonObjectBuilder breakerStatus(CircuitBreaker breaker) {
+        JsonArrayBuilder history = Json.createArrayBuilder();
+        for(String transition : breaker.getHistory()) {
+            history.add(transition);
+        }
+        return provider.createObjectBuilder()
+                .add("state", breaker.getState().toString())
+                .add("failures", breaker.getFailures())
+                .add("rejected", breaker.getRejected())
+                .add("transitions", breaker.getTransitions())
+                .add("history", history);
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        //Write any batched LoginSession changes and audit events before undeploying
+        loginSessions.close();
+        if(auditLog != null) {
+            auditLog.close();
+        }
+    }
+    
+    public void addSession(Session session) {
+        session.setMaxIdleTimeout(timeout);
+        sessions.add(session);
+    }
+
+    public void removeSession(Session session) {
+        //Keep loginsession because its token could be used later
+        if(session != null) {
+            LoginSession loginSession = loginSessions.get(session.getId());
+            if(loginSession != null) {
+                loginSession.deleteSession();
+            }
+            sessions.remove(session);
+            lockoutWatcher.unwatch(session);
+        }
+    }
+    public void removeLoginSession(Session session) {
+        loginSessions.remove(session.getId());
+        sessions.remove(session);
+        lockoutWatcher.unwatch(session);
+    }
+    
+    /**
+     * Replaces the accounts a session is notified about when they get locked out.
+     * 
+     * @param  session   the session to notify
+     * @param  usernames the accounts to watch
+     * @param  all       true to be notified about every new lockout
+     */
+    public void watchLockouts(Session session, List<String> usernames, boolean all) {
+        if(!loginSessions.containsKey(session.getId())) {
+            JsonObject message = provider.createObjectBuilder()
+                    .add("action", "nologin")
+                    .build();
+            sendToSession(session, message);
+            return;
+        }
+        lockoutWatcher.watch(session, usernames, all);
+    }
+    
+    public void unwatchLockouts(Session session) {
+        lockoutWatcher.unwatch(session);
+    }
+    
+    private void refreshSnapshot() {
+        //Keep serving the snapshot on disk if the database isn't available
+        if(ds == null) {
+            return;
+        }
+        try {
+            usernameSnapshot.refresh();
+        } catch(SQLException ex) {
+            System.out.println("Couldn't read usernames for the snapshot. "+ex);
+        } catch(IOException ex) {
+            System.out.println("Couldn't write username snapshot. "+ex);
+        }
+    }
+    
+    private void preloadGroups() {
+        long startTime = System.currentTimeMillis();
+        try {
+            ADLookup serviceQuery = new ADLookup(connectionStr, serviceUser, servicePass, baseDN);
+            int total = groupCache.preload(serviceQuery, maxResults);
+            System.out.println("Loaded "+total+" groups into the group cache in "+(System.currentTimeMillis()-startTime)+"ms");
+        } catch(NamingException ex) {
+            System.out.println("Couldn't load groups. "+ex);
+        }
+    }
+    
+    private void pollLockouts() {
+        if(!lockoutWatcher.hasWatchers()) {
+            lockoutWatcher.reset();
+            return;
+        }
+        try {
+            ADLookup serviceQuery = new ADLookup(connectionStr, serviceUser, servicePass, baseDN);
+            lockoutWatcher.poll(serviceQuery, maxResults);
+        } catch(NamingException | NumberFormatException ex) {
+            System.out.println("Couldn't search for new lockouts. "+ex);
+        }
+    }
+    
+    //Reference LoginSession to prevent expiration
+    public void keepLoginSession(Session session) {
+        loginSessions.touch(session.getId());
+    }
+    
+    //Sends the detailed status of this app server to a logged in operator
+    public void sendStatus(Session session) {
+        execService.execute(() -> {
+            LoginSession loginSession = loginSessions.get(session.getId());
+            if(loginSession == null || loginSession.getQuery() == null) {
+                sendToSession(session, provider.createObjectBuilder()
+                        .add("action", "nologin")
+                        .build());
+                return;
+            }
+            sendToSession(session, provider.createObjectBuilder()
+                    .add("action", "status")
+                    .add("status", getStatus())
+                    .build());
+        });
+    }
+
+    public void login(Session session, String username, String password) {
+        //Use another thread to avoid blocking the WebSocketServer
+        execService.execute(new Runnable() {
+            @Override
+            public void run() {
+                JsonObject message = null;
+                try {
+                    if (username == null || "".equals(username) || password == null || "".equals(password)) {
+                        //System.out.println("Empty username or password");
+                        throw new Exception("Empty username or password");
+                    }
+                    //Authenticate by creating new ADLookup which does a bind
+                    ADLookup query = new ADLookup(connectionStr, username, password, baseDN, serviceUser, servicePass, authGroup);
+                    loginSessions.put(session.getId(),new LoginSession(session, query));
+                    message = provider.createObjectBuilder()
+                            .add("action", "loginresponse")
+                            .add("message", "success")
+                            .add("token", session.getId())
+                            .build();
+                    audit("login", username, "", true, "");
+                } catch (Exception e) {
+                    audit("login", username, "", false, e.getMessage());
+                    message = provider.createObjectBuilder()
+                            .add("action", "loginresponse")
+                            .add("message", "fail")
+                            .build();
+                } finally {
+                    sendToSession(session, message);
+                }
+            }
+        });
+    }
+    
+    public void login(Session session, String token) {
+        execService.execute(new Runnable() {
+            @Override
+            public void run() {
+                JsonObject message = null;
+                try {
+                    if (token == null || "".equals(token)) {
+                        throw new Exception("Empty token");
+                    }
+                    if(token.length() != 38) {
+                        throw new Exception("Token is an invalid size");
+                    }
+                    String trimToken = token.substring(1, token.length()-1);
+                    LoginSession oldLogin = loginSessions.resume(trimToken);
+                    if(oldLogin == null) {
+                        throw new Exception("Invalid token");
                     }
                     //Reuse old ADQuery object
                     loginSessions.put(session.getId(),new LoginSession(session, oldLogin.getQuery()));
@@ -342,14 +1181,14 @@ public class SessionHandler {
                             .add("message", "success")
                             .add("token", session.getId())
                             .build();
-                    System.out.println("Login success");
+                    audit("tokenlogin", oldLogin.getQuery().getPrincipal(), "", true, "");
                 //Don't need to reply if failed
                 } catch (Exception e) {
                     message = provider.createObjectBuilder()
                         .add("action", "cachedlogin")
                         .add("message", "failed")
                         .build();
-                    System.out.println("Login failed.\n"+e);
+                    audit("tokenlogin", "", "", false, e.getMessage());
                 } finally {
                     sendToSession(session, message);
                 }
@@ -361,10 +1200,25 @@ public class SessionHandler {
         execService.execute(new Runnable() {
             @Override
             public void run() {
-                if(loginSessions.containsKey(session.getId())) {
-                    ADLookup query = loginSessions.get(session.getId()).getQuery();
+                LoginSession loginSession = loginSessions.get(session.getId());
+                if(loginSession != null) {
+                    ADLookup query = loginSession.getQuery();
                     if(query != null) {
-                        boolean result = query.setAttrib(username, "lockoutTime", "0");
+                        //Modify the account that was shown on the domain controller of its root
+                        boolean result = false;
+                        try {
+                            SearchRoots.Match match = loginSession.getShown(username);
+                            if(match == null) {
+                                match = searchRoots.searchFirst(query, new String[0], username);
+                            }
+                            if(match != null) {
+                                match.getLookup().replaceAttribute(match.getDistName(), "lockoutTime", "0");
+                                result = true;
+                            }
+                        } catch(NamingException ex) {
+                            System.err.println("NamingException when unlocking " + username + ". " + ex);
+                        }
+                        audit("unlock", query.getPrincipal(), username, result, "");
 
                         if (result == false) {
                             JsonObject message = provider.createObjectBuilder()
@@ -389,6 +1243,119 @@ public class SessionHandler {
         });
     }
     
+    /**
+     * Unlocks many accounts at once. All distinguished names are found with
+     * one paged search, then unlocked over a few connections in parallel,
+     * each unlocking its accounts one at a time. The result of each account
+     * is sent as soon as it is known.
+     * 
+     * @param  session   the session to send results to
+     * @param  usernames the accounts to unlock
+     */
+    public void bulkUnlock(Session session, List<String> usernames) {
+        execService.execute(new Runnable() {
+            @Override
+            public void run() {
+                LoginSession loginSession = loginSessions.get(session.getId());
+                ADLookup query = loginSession == null ? null : loginSession.getQuery();
+                if(query == null) {
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "nologin")
+                            .build();
+                    sendToSession(session, message);
+                    return;
+                }
+                long startTime = System.currentTimeMillis();
+                
+                //Remove duplicate usernames but keep them in order
+                Map<String,String> accounts = new LinkedHashMap<>();
+                for(String username : usernames) {
+                    if(username != null && !username.isEmpty()) {
+                        accounts.putIfAbsent(username.toLowerCase(Locale.ROOT), username);
+                    }
+                }
+                int total = accounts.size();
+                if(total > bulkUnlockMax) {
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "bulkunlockdone")
+                            .add("total", total)
+                            .add("succeeded", 0)
+                            .add("failed", total)
+                            .add("error", "Can't unlock more than "+bulkUnlockMax+" accounts at once")
+                            .build();
+                    sendToSession(session, message);
+                    return;
+                }
+                AtomicInteger done = new AtomicInteger();
+                AtomicInteger succeeded = new AtomicInteger();
+                try {
+                    Map<ADLookup,Map<String,String>> distNamesByRoot = searchRoots.findDistinguishedNames(query, accounts.values(), maxResults);
+                    Map<String,String> distNames = new HashMap<>();
+                    for(Map<String,String> rootDistNames : distNamesByRoot.values()) {
+                        distNames.putAll(rootDistNames);
+                    }
+                    
+                    //Report accounts that don't exist right away
+                    Map<String,String> usernamesByDN = new HashMap<>();
+                    for(Entry<String,String> account : accounts.entrySet()) {
+                        String distName = distNames.get(account.getKey());
+                        if(distName == null) {
+                            audit("unlock", query.getPrincipal(), account.getValue(), false, "bulk: not found");
+                            sendUnlockResult(session, account.getValue(), false, done.incrementAndGet(), total);
+                        }
+                        else {
+                            usernamesByDN.put(distName, account.getValue());
+                        }
+                    }
+                    
+                    ModificationItem[] mod = new ModificationItem[]{
+                        new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("lockoutTime", "0"))
+                    };
+                    
+                    //Each root's accounts are modified on its own domain controller
+                    for(Entry<ADLookup,Map<String,String>> root : distNamesByRoot.entrySet()) {
+                        root.getKey().modifyAll(root.getValue().values(), mod, unlockParallelism, execService, (distName, error) -> {
+                            if(error == null) {
+                                succeeded.incrementAndGet();
+                            }
+                            else {
+                                System.err.println("NamingException when unlocking " + distName + ". " + error);
+                            }
+                            audit("unlock", query.getPrincipal(), usernamesByDN.get(distName), error == null, error == null ? "bulk" : "bulk: "+error.getMessage());
+                            sendUnlockResult(session, usernamesByDN.get(distName), error == null, done.incrementAndGet(), total);
+                        });
+                    }
+                } catch(NamingException ex) {
+                    System.err.println("NamingException when finding accounts to unlock. " + ex);
+                    audit("unlock", query.getPrincipal(), "", false, "bulk: "+ex.getMessage());
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                long elapsed = System.currentTimeMillis()-startTime;
+                JsonObject message = provider.createObjectBuilder()
+                        .add("action", "bulkunlockdone")
+                        .add("total", total)
+                        .add("succeeded", succeeded.get())
+                        .add("failed", total-succeeded.get())
+                        .add("elapsed", elapsed)
+                        .build();
+                sendToSession(session, message);
+                System.out.println("Unlocked "+succeeded.get()+" of "+total+" accounts in "+elapsed+"ms");
+            }
+        });
+    }
+    
+    private void sendUnlockResult(Session session, String username, boolean success, int done, int total) {
+        JsonObject message = provider.createObjectBuilder()
+                .add("action", "bulkunlockresult")
+                .add("user", username)
+                .add("success", success)
+                .add("done", done)
+                .add("total", total)
+                .build();
+        sendToSession(session, message);
+    }
+    
     public void searchUsers(Session session, String username, long whenSent) {
         execService.execute(new Runnable() {
             @Override
@@ -404,59 +1371,35 @@ public class SessionHandler {
                 long pingTime = (startTime-whenSent)*2;
                 //System.out.println("Searching for "+username);
                 //Check if the client already has all possible usernames cached for this prefix
-                String prefix = query.completedSearches.floor(username);
-                
-                if((prefix != null && username.startsWith(prefix))) {
+                SuggestionState state = query.getSuggestions(suggestionBudget);
+                if(state.isCompleted(username)) {
                     System.out.println("Prefix found");
                     return;
                 }
+                //Skip the ranges the browser already has
+                ArrayList<String> excludeStrings = findExcludedRanges(state, username);
+                if(excludeStrings == null) {
+                    return;
+                }
+                
+                //Answer from the mapped snapshot without waiting for the database
+                UsernameSnapshot snapshot = usernameSnapshot == null ? null : usernameSnapshot.getSnapshot();
+                if(snapshot != null) {
+                    sendSnapshotSuggestions(session, state, snapshot, username, excludeStrings, startTime, pingTime);
+                    return;
+                }
+                if(!sqlBreaker.allowRequest()) {
+                    sendStaleSuggestions(session, "suggestion", username, maxResults);
+                    return;
+                }
+                String notBetween = "";
+                for(int i=0;i<excludeStrings.size();i+=2) {
+                    notBetween += " AND username NOT BETWEEN ? AND ?";
+                }
+                boolean sqlFailed = false;
                 try(Connection conn = ds.getConnection()) {
                     //System.out.println("Established connection in "+(System.currentTimeMillis()-startTime)+"ms");
                     
-                    //Search for the closest key in incompleteSearches
-                    ArrayList<String> excludeStrings = new ArrayList<>();
-                    String firstEntry = query.incompleteSearches.floorKey(username);
-                    if(firstEntry == null) {
-                        firstEntry = query.incompleteSearches.ceilingKey(username);
-                    }
-                    String notBetween = "";
-                    if(firstEntry != null) {
-                        //Construct a string with the last character incremented (ex. username => usernamf)
-                        char[] usernameArr = username.toCharArray();
-                        usernameArr[usernameArr.length-1]++;
-                        String nextUsername = new String(usernameArr);
-                        //username.substring(0, username.length()-1)+Character.toString((char) (username.charAt(username.length()-1)+1));
-                        System.out.print("Next username is "+nextUsername);
-                        //Make sure the map is not empty
-                        if(nextUsername.compareTo(firstEntry) > 0) {
-                            //Find all matching ranges and their keys
-                            SortedMap<String,Boolean> excludeMap = query.incompleteSearches.subMap(firstEntry,true,nextUsername,false);
-                            String[] keys = excludeMap.keySet().toArray(new String[0]);
-                            for(int i=0;i<keys.length;i++) {
-                                //Check if keys[i] and keys[i+1] form a range or if the last element starts a range
-                                if(excludeMap.get(keys[i]) == true && (i == keys.length-1 || excludeMap.get(keys[i+1]) == false)) {
-                                    excludeStrings.add(keys[i]);
-                                    
-                                    //This is the last element and it starts an incomplete range
-                                    if(i == keys.length-1) {
-                                        //A search excluding everything in between will return nothing
-                                        //keys[i] <= username
-                                        if(username.compareToIgnoreCase(keys[i]) >= 0) {
-                                            System.out.print("Ignoring search for "+username+" because an incomplete search starts with "+keys[i]);
-                                            return;
-                                        }
-                                        excludeStrings.add(nextUsername);
-                                    }
-                                    //This is a range pair
-                                    else {
-                                        excludeStrings.add(keys[i+1]);
-                                    }
-                                    notBetween += " AND username NOT BETWEEN ? AND ?";
-                                }
-                            }
-                        }
-                    }
-
                     int pageNum = 0;
                     int totalResults = 0;
                     //For each query
@@ -496,112 +1439,551 @@ public class SessionHandler {
                         //Build the JSON response and send immediately
                         JsonObject message = provider.createObjectBuilder()
                                 .add("action","suggestion")
+                                .add("user",username)
                                 .add("suggestion",arrBuilder)
+                                .add("complete",numResults < maxResults)
                                 .build();
                         sendToSession(session, message);
 
                         //Search is complete if the results are less than the limit
                         if(numResults < maxResults) {
-                            query.completedSearches.add(username);
+                            state.addCompleted(username);
+                            suggestionBudget.enforce();
                             System.out.println("Searching for "+totalResults+" usernames matching "+username+" took "+(System.currentTimeMillis()-startTime)+"ms");
                         }
                         //Timeout a search if it would take more than 100ms to arrive
                         else if((System.currentTimeMillis()-startTime+pingTime) > suggestionTimeout) {
                             System.out.println("Searching for "+totalResults+" usernames matching "+username+" timed out after "+(System.currentTimeMillis()-startTime)+"ms with ping="+pingTime+".");
                             numResults = -1;
-                            combineRanges(username,lastUsername,query);
+                            state.combineRanges(username,lastUsername);
+                            suggestionBudget.enforce();
                         }
                         //Search is complete if the number of pages reaches the max threshold
                         else if(pageNum >= maxPages) {
                             System.out.println("Search for "+username+" was truncated at "+totalResults+" results after "+(System.currentTimeMillis()-startTime)+"ms.");
                             numResults = -1;
-                            combineRanges(username,lastUsername,query);
+                            state.combineRanges(username,lastUsername);
+                            suggestionBudget.enforce();
                         }
                     }
                     conn.close();
                 } catch (SQLException ex) {
+                    sqlFailed = true;
                     System.out.println("SQL query error. "+ex);
+                    sendStaleSuggestions(session, "suggestion", username, maxResults);
+                } finally {
+                    recordResult(sqlBreaker, !sqlFailed);
                 }
             }
         });
     }
     
+    /**
+     * Finds the ranges of usernames matching a prefix that the browser
+     * already has from incomplete searches of shorter prefixes.
+     * 
+     * @param  state    the browser's suggestion state
+     * @param  username the prefix being searched for
+     * @return          the first and last username of each range, or null if the whole search can be skipped
+     */
+    private ArrayList<String> findExcludedRanges(SuggestionState state, String username) {
+        //Search for the closest key in incompleteSearches
+        ArrayList<String> excludeStrings = new ArrayList<>();
+        String firstEntry = state.incompleteSearches.floorKey(username);
+        if(firstEntry == null) {
+            firstEntry = state.incompleteSearches.ceilingKey(username);
+        }
+        if(firstEntry != null) {
+            //Construct a string with the last character incremented (ex. username => usernamf)
+            char[] usernameArr = username.toCharArray();
+            usernameArr[usernameArr.length-1]++;
+            String nextUsername = new String(usernameArr);
+            //username.substring(0, username.length()-1)+Character.toString((char) (username.charAt(username.length()-1)+1));
+            System.out.print("Next username is "+nextUsername);
+            //Make sure the map is not empty
+            if(nextUsername.compareTo(firstEntry) > 0) {
+                //Find all matching ranges and their keys
+                SortedMap<String,Boolean> excludeMap = state.incompleteSearches.subMap(firstEntry,true,nextUsername,false);
+                String[] keys = excludeMap.keySet().toArray(new String[0]);
+                for(int i=0;i<keys.length;i++) {
+                    //Check if keys[i] and keys[i+1] form a range or if the last element starts a range
+                    if(excludeMap.get(keys[i]) == true && (i == keys.length-1 || excludeMap.get(keys[i+1]) == false)) {
+                        excludeStrings.add(keys[i]);
+                        
+                        //This is the last element and it starts an incomplete range
+                        if(i == keys.length-1) {
+                            //A search excluding everything in between will return nothing
+                            //keys[i] <= username
+                            if(username.compareToIgnoreCase(keys[i]) >= 0) {
+                                System.out.print("Ignoring search for "+username+" because an incomplete search starts with "+keys[i]);
+                                return null;
+                            }
+                            excludeStrings.add(nextUsername);
+                        }
+                        //This is a range pair
+                        else {
+                            excludeStrings.add(keys[i+1]);
+                        }
+                    }
+                }
+            }
+        }
+        return excludeStrings;
+    }
+    
+    /**
+     * Sends the usernames matching a prefix from the snapshot in pages like
+     * searchUsers does from the users table.
+     * 
+     * @param  session        the session to send suggestions to
+     * @param  state          the browser's suggestion state
+     * @param  snapshot       the snapshot to search
+     * @param  username       the prefix being searched for
+     * @param  excludeStrings the first and last username of each range to skip
+     * @param  startTime      when the search started
+     * @param  pingTime       the round trip time to the browser
+     */
+    private void sendSnapshotSuggestions(Session session, SuggestionState state, UsernameSnapshot snapshot, String username, List<String> excludeStrings, long startTime, long pingTime) {
+        List<String> page = new ArrayList<>(maxResults);
+        int[] pageNum = new int[1];
+        int[] totalResults = new int[1];
+        String[] lastUsername = new String[1];
+        snapshot.forEach(username, null, (match) -> {
+            //Skip like NOT BETWEEN, which includes both ends
+            for(int i=0;i<excludeStrings.size();i+=2) {
+                if(match.compareToIgnoreCase(excludeStrings.get(i)) >= 0 && match.compareToIgnoreCase(excludeStrings.get(i+1)) <= 0) {
+                    return true;
+                }
+            }
+            page.add(match);
+            if(page.size() < maxResults) {
+                return true;
+            }
+            sendSuggestionPage(session, username, page, false);
+            totalResults[0] += page.size();
+            page.clear();
+            if((System.currentTimeMillis()-startTime+pingTime) > suggestionTimeout || pageNum[0] >= maxPages) {
+                lastUsername[0] = match;
+                return false;
+            }
+            pageNum[0]++;
+            return true;
+        });
+        if(lastUsername[0] != null) {
+            System.out.println("Snapshot search for "+username+" was truncated at "+totalResults[0]+" results after "+(System.currentTimeMillis()-startTime)+"ms.");
+            state.combineRanges(username, lastUsername[0]);
+        }
+        else {
+            sendSuggestionPage(session, username, page, true);
+            totalResults[0] += page.size();
+            state.addCompleted(username);
+            System.out.println("Searching the snapshot for "+totalResults[0]+" usernames matching "+username+" took "+(System.currentTimeMillis()-startTime)+"ms");
+        }
+        suggestionBudget.enforce();
+    }
+    
+    private void sendSuggestionPage(Session session, String username, List<String> usernames, boolean complete) {
+        JsonArrayBuilder arrBuilder = Json.createArrayBuilder();
+        for(String match : usernames) {
+            arrBuilder.add(match);
+        }
+        JsonObject message = provider.createObjectBuilder()
+                .add("action","suggestion")
+                .add("user",username)
+                .add("suggestion",arrBuilder)
+                .add("complete",complete)
+                .build();
+        sendToSession(session, message);
+    }
+    
+    public void searchPeople(Session session, String text, int limit) {
+        execService.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(!loginSessions.containsKey(session.getId())) {
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "nologin")
+                            .build();
+                    sendToSession(session, message);
+                    return;
+                }
+                JsonArrayBuilder arrBuilder = Json.createArrayBuilder();
+                List<PeopleIndex.Hit> hits = peopleIndex.search(text, limit);
+                for(PeopleIndex.Hit hit : hits) {
+                    arrBuilder.add(provider.createObjectBuilder()
+                            .add("username", hit.getField(PeopleIndex.USERNAME))
+                            .add("displayname", hit.getField(PeopleIndex.DISPLAY_NAME))
+                            .add("mailnickname", hit.getField(PeopleIndex.MAIL_NICKNAME))
+                            .add("employeeid", hit.getField(PeopleIndex.EMPLOYEE_ID))
+                            .add("score", hit.getScore()));
+                }
+                JsonObject message = provider.createObjectBuilder()
+                        .add("action", "searchresults")
+                        .add("query", text)
+                        .add("results", arrBuilder)
+                        .build();
+                sendToSession(session, message);
+            }
+        });
+    }
+    
+    /**
+     * Streams a report of locked accounts or of passwords that expire within a
+     * number of days. The directory is searched with the paged results control
+     * and each page is sent to the client as soon as it arrives, so only one
+     * page is held in memory at a time.
+     * 
+     * @param  session the session to send the report to
+     * @param  report  "locked" or "expiring"
+     * @param  days    for "expiring", the number of days to look ahead (1 to 365)
+     */
+    public void runReport(Session session, String report, int days) {
+        execService.execute(new Runnable() {
+            @Override
+            public void run() {
+                LoginSession loginSession = loginSessions.get(session.getId());
+                ADLookup query = loginSession == null ? null : loginSession.getQuery();
+                if(query == null) {
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "nologin")
+                            .build();
+                    sendToSession(session, message);
+                    return;
+                }
+                String filter;
+                String[] reportAttributes;
+                if("locked".equals(report)) {
+                    filter = "(&(objectCategory=person)(objectClass=user)(lockoutTime>=1))";
+                    reportAttributes = new String[]{"sAMAccountName", "displayName", "lockoutTime", "badPwdCount"};
+                }
+                else if("expiring".equals(report)) {
+                    //A password expires within the window if it was set between these two times
+                    long now = System.currentTimeMillis();
+                    long firstSet = now - TimeUnit.DAYS.toMillis(pwdDuration);
+                    long lastSet = firstSet + TimeUnit.DAYS.toMillis(Math.max(1, Math.min(days, 365)));
+                    filter = "(&(objectCategory=person)(objectClass=user)"
+                            + "(pwdLastSet>=" + dateTimeToFileTime(firstSet) + ")"
+                            + "(pwdLastSet<=" + dateTimeToFileTime(lastSet) + ")"
+                            //Skip accounts that are disabled or whose passwords never expire
+                            + "(!(userAccountControl:1.2.840.113556.1.4.803:=2))"
+                            + "(!(userAccountControl:1.2.840.113556.1.4.803:=" + ADLookup.DONT_EXPIRE_PASSWORD + ")))";
+                    reportAttributes = new String[]{"sAMAccountName", "displayName", "pwdLastSet"};
+                }
+                else {
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "reportdone")
+                            .add("report", report)
+                            .add("error", "Unknown report")
+                            .build();
+                    sendToSession(session, message);
+                    return;
+                }
+                
+                long startTime = System.currentTimeMillis();
+                int[] pages = new int[1];
+                try {
+                    int total = searchRoots.searchPaged(query, filter, reportAttributes, maxResults, (page) -> {
+                        //Stop searching if the client went away
+                        if(!session.isOpen()) {
+                            return false;
+                        }
+                        JsonArrayBuilder rows = Json.createArrayBuilder();
+                        for(String[] account : page) {
+                            JsonObjectBuilder row = provider.createObjectBuilder()
+                                    .add("username", account[0])
+                                    .add("displayname", account[1]);
+                            if("locked".equals(report)) {
+                                row.add("lockouttime", fileTimeToDateTime(account[2]))
+                                   .add("badpwdcount", account[3]);
+                            }
+                            else {
+                                row.add("pwdlastset", fileTimeToDateTime(account[2]))
+                                   .add("passwordsettoexpire", passwordExpiration(account[2]))
+                                   .add("daysleft", daysBeforeExpiration(account[2]));
+                            }
+                            rows.add(row);
+                        }
+                        pages[0]++;
+                        JsonObject message = provider.createObjectBuilder()
+                                .add("action", "reportchunk")
+                                .add("report", report)
+                                .add("page", pages[0])
+                                .add("rows", rows)
+                                .build();
+                        sendToSession(session, message);
+                        return true;
+                    });
+                    long elapsed = System.currentTimeMillis()-startTime;
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "reportdone")
+                            .add("report", report)
+                            .add("total", total)
+                            .add("pages", pages[0])
+                            .add("elapsed", elapsed)
+                            .build();
+                    sendToSession(session, message);
+                    System.out.println("Report "+report+" found "+total+" accounts in "+pages[0]+" pages after "+elapsed+"ms");
+                } catch(NamingException ex) {
+                    System.err.println("NamingException when running report " + report + ". " + ex);
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "reportdone")
+                            .add("report", report)
+                            .add("error", "The report could not be completed")
+                            .build();
+                    sendToSession(session, message);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Reads people from the domain controller into the people index. The whole
+     * directory is loaded once a day so deleted people are dropped. Otherwise
+     * only people changed since the last update are read.
+     */
+    private void refreshPeopleIndex() {
+        long startTime = System.currentTimeMillis();
+        boolean full = startTime - indexLoaded > TimeUnit.DAYS.toMillis(1);
+        String filter = "(&(objectCategory=person)(objectClass=user))";
+        if(!full) {
+            //Overlap the last update to allow for clock differences with the domain controller
+            String since;
+            synchronized(generalizedTime) {
+                since = generalizedTime.format(new Date(indexUpdated - TimeUnit.MINUTES.toMillis(5)));
+            }
+            filter = "(&(objectCategory=person)(objectClass=user)(whenChanged>=" + since + "))";
+        }
+        PeopleIndex index = full ? new PeopleIndex() : peopleIndex;
+        try {
+            ADLookup serviceQuery = new ADLookup(connectionStr, serviceUser, servicePass, baseDN);
+            int total = searchRoots.searchPaged(serviceQuery, filter, PeopleIndex.ATTRIBUTES, maxResults, (page) -> {
+                for(String[] person : page) {
+                    index.update(person[0], person[1], person[2], person[3]);
+                }
+                return true;
+            });
+            if(full) {
+                peopleIndex = index;
+                indexLoaded = startTime;
+            }
+            indexUpdated = startTime;
+            System.out.println((full ? "Loaded " : "Updated ")+total+" people in the people index in "+(System.currentTimeMillis()-startTime)+"ms");
+        } catch(NamingException ex) {
+            System.out.println("Couldn't load people index. "+ex);
+        }
+    }
+    
+    /**
+     * Sends the best few usernames starting with a prefix and the number of
+     * matches, instead of every match. The most looked up users come first,
+     * then the rest in alphabetical order. More usernames are only read when
+     * the client asks for the ones after the last it received.
+     * 
+     * @param  session  the session to send suggestions to
+     * @param  username the prefix to search for
+     * @param  requested the number of usernames to send, from 1 to 50
+     * @param  after     the last username already received, or null for the first page
+     */
+    public void topSuggestions(Session session, String username, int requested, String after) {
+        int limit = Math.max(1, Math.min(requested, 50));
+        execService.execute(new Runnable() {
+            @Override
+            public void run() {
+                LoginSession loginSession = loginSessions.get(session.getId());
+                if(loginSession == null || loginSession.getQuery() == null || username.isEmpty()) {
+                    return;
+                }
+                
+                //The browser already has every match, as checked against its last manifest
+                if(after == null && loginSession.getQuery().getSuggestions(suggestionBudget).isCompleted(username)) {
+                    JsonObject message = provider.createObjectBuilder()
+                            .add("action", "topsuggestion")
+                            .add("user", username)
+                            .add("suggestion", Json.createArrayBuilder())
+                            .add("more", false)
+                            .add("last", "")
+                            .add("cached", true)
+                            .build();
+                    sendToSession(session, message);
+                    return;
+                }
+                List<String> ranked = new ArrayList<>(limit);
+                Set<String> seen = new HashSet<>();
+                String last = "";
+                boolean more = false;
+                if(!suggestionBreaker.allowRequest()) {
+                    sendStaleSuggestions(session, "topsuggestion", username, limit);
+                    return;
+                }
+                SuggestionBackend.Page page;
+                try {
+                    page = suggestionBackend.suggest(username, after, limit, after == null);
+                } catch (SQLException | NamingException ex) {
+                    suggestionBreaker.recordFailure();
+                    System.out.println("Suggestion search error. "+ex);
+                    sendStaleSuggestions(session, "topsuggestion", username, limit);
+                    return;
+                }
+                suggestionBreaker.recordSuccess();
+                int total = page.getTotal();
+                
+                //Popular users first, then fill the rest in alphabetical order
+                if(after == null) {
+                    for(String popular : popularity.top(username, limit)) {
+                        ranked.add(popular);
+                        seen.add(popular.toLowerCase(Locale.ROOT));
+                    }
+                    loginSession.setPopular(username, new HashSet<>(seen));
+                }
+                else {
+                    //Skip the popular users already sent on the first page
+                    seen.addAll(loginSession.getPopular(username));
+                }
+                int rows = 0;
+                for(String name : page.getUsernames()) {
+                    rows++;
+                    if(ranked.size() >= limit) {
+                        more = true;
+                        break;
+                    }
+                    last = name;
+                    if(seen.add(last.toLowerCase(Locale.ROOT))) {
+                        ranked.add(last);
+                    }
+                }
+                more = more || rows > limit;
+                
+                //Remember that the browser has every match so a manifest can be checked against it
+                if(!more) {
+                    loginSession.getQuery().getSuggestions(suggestionBudget).addCompleted(username);
+                    suggestionBudget.enforce();
+                }
+                
+                //An exact match always comes first
+                for(int i = 1; i < ranked.size(); i++) {
+                    if(ranked.get(i).equalsIgnoreCase(username)) {
+                        ranked.add(0, ranked.remove(i));
+                        break;
+                    }
+                }
+                if(after == null) {
+                    staleSuggestions.put(username.toLowerCase(Locale.ROOT), ranked);
+                }
+                JsonArrayBuilder arrBuilder = Json.createArrayBuilder();
+                for(String suggestion : ranked) {
+                    arrBuilder.add(suggestion);
+                }
+                JsonObjectBuilder builder = provider.createObjectBuilder()
+                        .add("action", "topsuggestion")
+                        .add("user", username)
+                        .add("suggestion", arrBuilder)
+                        .add("more", more)
+                        .add("last", last);
+                if(total >= 0) {
+                    builder.add("total", total)
+                           .add("totalcapped", page.isTotalCapped());
+                }
+                sendToSession(session, builder.build());
+            }
+        });
+    }
+    
+    /**
+     * Checks which prefixes the server thinks a browser has against the
+     * browser's manifest, and sends the first page of the most recently used
+     * prefixes it lost again.
+     * 
+     * @param  session  the session that sent the manifest
+     * @param  manifest the prefixes the browser has every suggestion for
+     */
+    public void reconcileSuggestions(Session session, PrefixManifest manifest) {
+        execService.execute(() -> {
+            LoginSession loginSession = loginSessions.get(session.getId());
+            if(loginSession == null || loginSession.getQuery() == null) {
+                return;
+            }
+            List<String> forgotten = loginSession.getQuery().getSuggestions(suggestionBudget).reconcile(manifest);
+            if(!forgotten.isEmpty()) {
+                Logger.getLogger(SessionHandler.class.getName()).log(Level.FINE, "Forgot {0} suggestion prefixes missing from a manifest of {1}",
+                        new Object[]{forgotten.size(), manifest.getCount()});
+            }
+            for(String prefix : forgotten.subList(0, Math.min(forgotten.size(), RESEND_PREFIXES))) {
+                topSuggestions(session, prefix, 8, null);
+            }
+        });
+    }
+    
     public void getUserInfo(Session session, String username) {
         execService.execute(new Runnable() {
             @Override
             public void run() {
                 //Search for corresponding loginsession
-                if(loginSessions.containsKey(session.getId())) {
-                    ADLookup query = loginSessions.get(session.getId()).getQuery();
+                LoginSession loginSession = loginSessions.get(session.getId());
+                if(loginSession != null) {
+                    ADLookup query = loginSession.getQuery();
                     if(query != null) {
-                        //Lookup attributes in AD
-                        String[] result = query.search(attributes, username);
-
-                        if (result == null) {
+                        String key = username.toLowerCase(Locale.ROOT);
+                        if(!ldapBreaker.allowRequest()) {
+                            audit("userinfo", query.getPrincipal(), username, sendStaleUserInfo(session, key), "stale");
+                            return;
+                        }
+                        JsonObject message;
+                        SearchRoots.Match match = null;
+                        try {
+                            match = searchRoots.searchFirst(query, userAttributes, username);
+                            message = match == null ? null : buildUserInfo(match, username);
+                            ldapBreaker.recordSuccess();
+                        } catch(NamingException ex) {
+                            System.err.println("NamingException when searching. " + ex);
+                            if(isOutage(ex)) {
+                                ldapBreaker.recordFailure();
+                                audit("userinfo", query.getPrincipal(), username, sendStaleUserInfo(session, key), "stale");
+                                return;
+                            }
+                            ldapBreaker.recordSuccess();
+                            message = null;
+                        }
+                        audit("userinfo", query.getPrincipal(), username, message != null, "");
+                        if (message != null) {
+                            //Suggest the name as the domain controller spells it, not as it was typed
+                            popularity.record(message.getString("username"));
+                            staleUserInfo.put(key, message);
+                            
+                            //Unlock the account that was shown, not whichever one a new search finds
+                            loginSession.setShown(username, match);
+                        }
+                        else {
                             //If no user is found, send an error
-                            JsonObject message = provider.createObjectBuilder()
+                            message = provider.createObjectBuilder()
                                     .add("action", "nouser")
                                     .build();
                             sendToSession(session, message);
                             return;
                         }
-                        else {
-                            //Calculate when password expires 
-                            String passwordSetToExpire = "Never";
-                            String daysLeft = "\u221e";
-                            int userBitmask = Integer.parseInt(result[12]);
-                            //Check that the flag ADS_UF_DONT_EXPIRE_PASSWD is set
-                            //from https://msdn.microsoft.com/en-us/library/ms680832(v=vs.85).aspx
-                            if((userBitmask & ADLookup.DONT_EXPIRE_PASSWORD) != ADLookup.DONT_EXPIRE_PASSWORD) {
-                                if(result[2] != null && !result[2].isEmpty()) {
-                                    Calendar cal = Calendar.getInstance();
-                                    try {
-                                        //Calculate when the password will expire
-                                        long currentTime = cal.getTimeInMillis();
-                                        cal.setTime(new Date((Long.parseLong(result[2]) / 10000) - 11644473600000L));
-                                        cal.add(Calendar.DATE, pwdDuration);
-                                        passwordSetToExpire = dateformat.format(cal.getTime());
-                                        
-                                        //Calculate the number of days before the password expires
-                                        daysLeft = Long.toString(TimeUnit.DAYS.convert(cal.getTimeInMillis()-currentTime, TimeUnit.MILLISECONDS));
-                                    } catch(NumberFormatException e) {}
-                                }
-                            }
-                            
-                            //Convert filetime to a date
-                            for (int i = 0; i < 4; i++) {
-                                if ("9223372036854775807".equals(result[i]) || "0".equals(result[i])) {
-                                    result[i] = "Never";
-                                } else {
-                                    result[i] = fileTimeToDateTime(result[i]);
-                                }
-                            }
-                            
-                            //Append domain to email
-                            if(result[7].isEmpty()) {
-                                result[7] = result[11];
-                            }
-                            else {
-                                result[7] = result[7] + domain;
+                        sendToSession(session, message);
+                        
+                        //Let the browser show the user info while the groups are read
+                        JsonObject groups = null;
+                        if(ldapBreaker.allowRequest()) {
+                            try {
+                                groups = buildUserGroups(query, match, username);
+                                ldapBreaker.recordSuccess();
+                            } catch(NamingException ex) {
+                                System.err.println("NamingException when searching. " + ex);
+                                recordResult(ldapBreaker, !isOutage(ex));
                             }
-
-                            result[10] = trimDistinguishedName(result[10]);
-                            //Build Json response to browser
-                            JsonObjectBuilder builder = Json.createObjectBuilder();
-                            for (int i = 0; i < attributes.length-2; i++) {
-                                if (result[i] == null || result[i].isEmpty()) {
-                                    result[i] = "N/A";
-                                }
-                                builder.add(attributes[i].toLowerCase(), result[i]);
+                        }
+                        if (groups != null) {
+                            staleGroups.put(key, groups);
+                            sendToSession(session, groups);
+                        }
+                        else {
+                            StaleCache.Entry<JsonObject> cached = staleGroups.get(key);
+                            if(cached != null) {
+                                sendToSession(session, markStale(cached));
                             }
-                            builder.add("action", "userinfo")
-                                   .add("daysleft", daysLeft)
-                                   .add("passwordsettoexpire", passwordSetToExpire);
-
-                            JsonObject message = builder.build();
-                            sendToSession(session, message);
-                            return;
                         }
+                        return;
                     } 
                 }
                 //If anything failed, logout the user
@@ -613,6 +1995,193 @@ public class SessionHandler {
         });   
     }
     
+    /**
+     * Builds the userinfo message for the browser from a user's attributes.
+     * 
+     * @param  match    the user found with userAttributes
+     * @param  username the user that was looked up
+     * @return          the userinfo message
+     */
+    private JsonObject buildUserInfo(SearchRoots.Match match, String username) {
+        String[] result = match.getValues();
+        String accountName = result[attributes.length].isEmpty() ? username : result[attributes.length];
+        
+        //Keep the people index current with what was just read
+        peopleIndex.update(accountName, result[5], result[7], result[4]);
+        
+        //Calculate when password expires 
+        String passwordSetToExpire = "Never";
+        String daysLeft = "\u221e";
+        int userBitmask = Integer.parseInt(result[11]);
+        //Check that the flag ADS_UF_DONT_EXPIRE_PASSWD is set
+        //from https://msdn.microsoft.com/en-us/library/ms680832(v=vs.85).aspx
+        if((userBitmask & ADLookup.DONT_EXPIRE_PASSWORD) != ADLookup.DONT_EXPIRE_PASSWORD) {
+            if(result[2] != null && !result[2].isEmpty()) {
+                Calendar cal = Calendar.getInstance();
+                try {
+                    //Calculate when the password will expire
+                    long currentTime = cal.getTimeInMillis();
+                    cal.setTime(new Date((Long.parseLong(result[2]) / 10000) - 11644473600000L));
+                    cal.add(Calendar.DATE, pwdDuration);
+                    passwordSetToExpire = dateformat.get().format(cal.getTime());
+                    
+                    //Calculate the number of days before the password expires
+                    daysLeft = Long.toString(TimeUnit.DAYS.convert(cal.getTimeInMillis()-currentTime, TimeUnit.MILLISECONDS));
+                } catch(NumberFormatException e) {}
+            }
+        }
+        
+        //Convert filetime to a date
+        for (int i = 0; i < 4; i++) {
+            if ("9223372036854775807".equals(result[i]) || "0".equals(result[i])) {
+                result[i] = "Never";
+            } else {
+                result[i] = fileTimeToDateTime(result[i]);
+            }
+        }
+        
+        //Append domain to email
+        if(result[7].isEmpty()) {
+            result[7] = result[10];
+        }
+        else {
+            result[7] = result[7] + domain;
+        }
+
+        //Build Json response to browser
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        for (int i = 0; i < attributes.length-2; i++) {
+            if (result[i] == null || result[i].isEmpty()) {
+                result[i] = "N/A";
+            }
+            builder.add(attributes[i].toLowerCase(), result[i]);
+        }
+        builder.add("action", "userinfo")
+               .add("user", username)
+               .add("username", accountName)
+               .add("daysleft", daysLeft)
+               .add("passwordsettoexpire", passwordSetToExpire);
+
+        return builder.build();
+    }
+    
+    /**
+     * Reads a user's groups and builds the usergroups message that fills in
+     * the groups of a userinfo message already sent. Groups can be long, so
+     * they are read after the rest of the user info is sent, straight from
+     * the entry the user info came from instead of searching for it again.
+     * 
+     * @param  query    the lookup nested groups are read with
+     * @param  match    the user whose info was sent
+     * @param  username the user that was looked up
+     * @return          the usergroups message or null if the user no longer exists
+     */
+    private JsonObject buildUserGroups(ADLookup query, SearchRoots.Match match, String username) throws NamingException {
+        List<String> memberOf;
+        try {
+            memberOf = match.getLookup().readAttribute(match.getDistName(), "memberOf");
+        } catch(NameNotFoundException ex) {
+            return null;
+        }
+        String groups = groupCache.render(String.join("\n", memberOf), nestedGroups ? query : null);
+        return provider.createObjectBuilder()
+                .add("action", "usergroups")
+                .add("user", username)
+                .add("memberof", groups)
+                .build();
+    }
+    
+    /**
+     * Sends the last good user info and groups for a user, marked as stale,
+     * while the domain controller is down.
+     * 
+     * @param  session the session to send the user info to
+     * @param  key     the lowercase username
+     * @return         false if nothing was cached and the browser was told the lookup is unavailable
+     */
+    private boolean sendStaleUserInfo(Session session, String key) {
+        StaleCache.Entry<JsonObject> cached = staleUserInfo.get(key);
+        if(cached == null) {
+            JsonObject message = provider.createObjectBuilder()
+                    .add("action", "unavailable")
+                    .add("backend", ldapBreaker.getName())
+                    .build();
+            sendToSession(session, message);
+            return false;
+        }
+        sendToSession(session, markStale(cached));
+        StaleCache.Entry<JsonObject> groups = staleGroups.get(key);
+        if(groups != null) {
+            sendToSession(session, markStale(groups));
+        }
+        return true;
+    }
+    
+    /**
+     * Sends the cached top suggestions for the longest cached prefix of a
+     * prefix, marked as stale, while the database is down.
+     * 
+     * @param  session the session to send suggestions to
+     * @param  action  the action of the message, suggestion or topsuggestion
+     * @param  prefix  the prefix being searched for
+     * @param  limit   the most suggestions to send
+     */
+    private void sendStaleSuggestions(Session session, String action, String prefix, int limit) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        JsonArrayBuilder arrBuilder = Json.createArrayBuilder();
+        for(int length = key.length(); length > 0; length--) {
+            StaleCache.Entry<List<String>> cached = staleSuggestions.get(key.substring(0, length));
+            if(cached != null) {
+                int count = 0;
+                for(String suggestion : cached.getValue()) {
+                    if(count < limit && suggestion.toLowerCase(Locale.ROOT).startsWith(key)) {
+                        arrBuilder.add(suggestion);
+                        count++;
+                    }
+                }
+                break;
+            }
+        }
+        JsonObject message = provider.createObjectBuilder()
+                .add("action", action)
+                .add("user", prefix)
+                .add("suggestion", arrBuilder)
+                .add("more", false)
+                .add("last", "")
+                .add("complete", false)
+                .add("stale", true)
+                .build();
+        sendToSession(session, message);
+    }
+    
+    //Copies a cached message and marks it as stale with the time it was cached
+    private JsonObject markStale(StaleCache.Entry<JsonObject> cached) {
+        JsonObjectBuilder builder = provider.createObjectBuilder();
+        for(Entry<String,JsonValue> field : cached.getValue().entrySet()) {
+            builder.add(field.getKey(), field.getValue());
+        }
+        return builder.add("stale", true)
+                      .add("cachedat", dateformat.get().format(new Date(cached.getTime())))
+                      .build();
+    }
+    
+    //True if an LDAP error means the domain controller couldn't answer, rather than rejecting the request
+    private static boolean isOutage(NamingException ex) {
+        return ex instanceof CommunicationException
+                || ex instanceof ServiceUnavailableException
+                || ex.getRootCause() instanceof IOException
+                || String.valueOf(ex.getMessage()).contains("timed out");
+    }
+    
+    private static void recordResult(CircuitBreaker breaker, boolean success) {
+        if(success) {
+            breaker.recordSuccess();
+        }
+        else {
+            breaker.recordFailure();
+        }
+    }
+    
     /**
      * Sends a JsonObject to a client
      * 
@@ -620,67 +2189,45 @@ public class SessionHandler {
      * @param  message the message to send
      */
     private void sendToSession(Session session, JsonObject message) {
+        //Several tasks can reply to the same session at once
         try {
-            session.getBasicRemote().sendText(message.toString());
+            synchronized(session) {
+                session.getBasicRemote().sendText(message.toString());
+            }
         } catch (IOException ex) {
             removeSession(session);
             Logger.getLogger(SessionHandler.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
-    private String trimDistinguishedName(String dn) {
-        if(dn != null && !dn.isEmpty()) {
-            Matcher matcher = cnPattern.matcher(dn);
-
-            //Append each group to an HTML encoded list
-            StringBuilder builder = new StringBuilder();
-            while(matcher.find()) {
-                builder.append(matcher.group(1))
-                       .append("<br/>");
-            }
-            return builder.toString();
-        }
-        else {
+    /**
+     * Returns a filetime converted from a Unix time in milliseconds.
+     * 
+     * @param  time the number of milliseconds since January 1, 1970 UTC
+     * @return      the corresponding filetime in decimal format
+     */
+    private String dateTimeToFileTime(long time) {
+        return Long.toString((time + 11644473600000L) * 10000L);
+    }
+    
+    //Returns when a password set at the filetime pwdLastSet will expire
+    private String passwordExpiration(String pwdLastSet) {
+        try {
+            long expires = Long.parseLong(pwdLastSet) / 10000L - 11644473600000L + TimeUnit.DAYS.toMillis(pwdDuration);
+            return dateformat.get().format(new Date(expires));
+        } catch(NumberFormatException e) {
             return "N/A";
         }
     }
     
-    private void combineRanges(String firstUsername, String lastUsername, ADLookup query) {
-        if(firstUsername == null || firstUsername.isEmpty() || lastUsername == null || lastUsername.isEmpty()) {
-            return;
-        }
-        Entry<String,Boolean> firstEntry = query.incompleteSearches.floorEntry(firstUsername);
-        Entry<String,Boolean> lastEntry = query.incompleteSearches.ceilingEntry(lastUsername);
-        Map<String,Boolean> toRemove = null;
-        
-        //Get the subMap between firstEntry and lastEntry even if one of them is null
-        if(firstEntry == null && lastEntry != null) {
-            toRemove = query.incompleteSearches.headMap(lastEntry.getKey(),false);
-        }
-        else if(firstEntry != null && lastEntry == null) {
-            toRemove = query.incompleteSearches.tailMap(firstEntry.getKey(),false);
-        }
-        else if(firstEntry != null && lastEntry != null) {
-            toRemove = query.incompleteSearches.subMap(firstEntry.getKey(),false,lastEntry.getKey(),false);
-        }
-        
-        //Remove all entries between this range
-        if(toRemove != null) {
-            query.incompleteSearches.keySet().removeAll(toRemove.keySet());
-        }
-        
-        //Have to create a new starting entry if no overlap
-        if(firstEntry == null || firstEntry.getValue() == false) {
-            query.incompleteSearches.put(firstUsername, Boolean.TRUE);
-            //System.out.println("Added range start at "+firstUsername);
-        }
-
-        //Have to create a new ending entry if no overlap
-        if(lastEntry == null || lastEntry.getValue() == true) {
-            query.incompleteSearches.put(lastUsername, Boolean.FALSE);
-            //System.out.println("Added range end at "+lastUsername);
+    //Returns the number of days before a password set at the filetime pwdLastSet expires
+    private String daysBeforeExpiration(String pwdLastSet) {
+        try {
+            long expires = Long.parseLong(pwdLastSet) / 10000L - 11644473600000L + TimeUnit.DAYS.toMillis(pwdDuration);
+            return Long.toString(TimeUnit.DAYS.convert(expires - System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+        } catch(NumberFormatException e) {
+            return "N/A";
         }
-        System.out.println("Incomplete searches: "+query.incompleteSearches);
     }
     
     /**
@@ -696,7 +2243,7 @@ public class SessionHandler {
                 long ms = Long.parseLong(time) / 10000L;
                 long unixtime = ms - 11644473600000L;
                 Date date = new Date(unixtime);
-                String formattedDate = dateformat.format(date);
+                String formattedDate = dateformat.get().format(date);
                 return formattedDate;
             }
         }
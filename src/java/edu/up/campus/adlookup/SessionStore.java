@@ -0,0 +1,44 @@
+/*
+ * SessionStore keeps the LoginSessions that let a browser log back in with its
+ * token. Implementations can keep them in memory or share them between app
+ * servers so a redeploy or a second node doesn't log everyone out.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+public interface SessionStore {
+    
+    /**
+     * Returns the LoginSession for a token and counts it as an access so it
+     * doesn't expire.
+     * 
+     * @param  token the session token
+     * @return       the LoginSession or null if there isn't a valid one
+     */
+    LoginSession get(String token);
+    
+    /**
+     * Returns the LoginSession a browser is logging back in with. Stores
+     * shared between app servers make sure it wasn't removed on another one.
+     * 
+     * @param  token the session token
+     * @return       the LoginSession or null if there isn't a valid one
+     */
+    default LoginSession resume(String token) {
+        return get(token);
+    }
+    
+    boolean containsKey(String token);
+    
+    void put(String token, LoginSession loginSession);
+    
+    LoginSession remove(String token);
+    
+    //Reference a LoginSession to prevent expiration
+    void touch(String token);
+    
+    //Release any resources held by the store
+    void close();
+}
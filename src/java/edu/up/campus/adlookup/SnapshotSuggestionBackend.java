@@ -0,0 +1,229 @@
+/*
+ * SnapshotSuggestionBackend finds usernames by prefix in a memory mapped
+ * UsernameSnapshot of the users table. The last snapshot written is opened on
+ * startup so suggestions work right away, and refresh writes a new one from
+ * the table in the background. Until there is a snapshot, the users table is
+ * searched instead.
+ *
+ * Each snapshot is a new file named after the configured file and the time it
+ * was written, such as usernames.snapshot.1760000000000, so a file is never
+ * replaced while it is mapped. Older files are deleted once they aren't used,
+ * along with temporary files left by a crash part way through a write.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+public class SnapshotSuggestionBackend implements SuggestionBackend {
+    private static final String QUERY_ALL_USERS = "SELECT username FROM users";
+
+    //The number of usernames between entries of the snapshot's index
+    private static final int BLOCK_SIZE = 32;
+
+    //Temporary files older than this many milliseconds are from writes that crashed
+    private static final long TEMP_FILE_AGE = TimeUnit.HOURS.toMillis(1);
+
+    //Snapshots are written next to this path with the time appended
+    private final Path file;
+    private final DataSource ds;
+
+    //The most matches to count
+    private final int countCap;
+
+    //Searched until the first snapshot is loaded
+    private final JdbcSuggestionBackend fallback;
+
+    private volatile UsernameSnapshot snapshot;
+
+    //The file the current snapshot was read from
+    private Path current;
+
+    //How long the last refresh took in milliseconds
+    private volatile long refreshTime = -1;
+
+    private final SuggestionStats stats = new SuggestionStats();
+
+    /**
+     * Constructor for SnapshotSuggestionBackend. Opens the last snapshot if
+     * there is one.
+     *
+     * @param  file     the absolute path to name snapshots after
+     * @param  ds       the database with the users table
+     * @param  countCap the most matches to count
+     */
+    public SnapshotSuggestionBackend(String file, DataSource ds, int countCap) {
+        this.file = Paths.get(file);
+        this.ds = ds;
+        this.countCap = countCap;
+        fallback = new JdbcSuggestionBackend(ds, countCap);
+        try {
+            //Use the newest snapshot that can be read
+            for(Path candidate : listSnapshots()) {
+                try {
+                    snapshot = UsernameSnapshot.open(candidate);
+                    current = candidate;
+                    System.out.println("Opened snapshot of "+snapshot.size()+" usernames from "+candidate);
+                    break;
+                } catch(IOException ex) {
+                    System.out.println("Couldn't open username snapshot "+candidate+". "+ex);
+                }
+            }
+            if(snapshot == null) {
+                System.out.println("No username snapshot yet at "+this.file);
+            }
+            
+            //The first refresh can be a while, so don't leave files from before the restart until then
+            deleteOldSnapshots();
+        } catch(IOException ex) {
+            System.out.println("Couldn't list username snapshots. "+ex);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "snapshot";
+    }
+
+    @Override
+    public Page suggest(String prefix, String after, int limit, boolean countTotal) throws SQLException, NamingException {
+        UsernameSnapshot current = snapshot;
+        if(current == null) {
+            return fallback.suggest(prefix, after, limit, countTotal);
+        }
+        long startTime = System.nanoTime();
+        List<String> usernames = current.find(prefix, after, limit+1);
+        int total = countTotal ? current.count(prefix, countCap) : -1;
+
+        //Nothing is sent to the database
+        stats.record(System.nanoTime()-startTime, 0, 0);
+        return new Page(usernames, total, total >= countCap);
+    }
+
+    @Override
+    public SuggestionStats getStats() {
+        return stats;
+    }
+
+    //The snapshot being searched, or null if there isn't one yet
+    public UsernameSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public long getRefreshTime() {
+        return refreshTime;
+    }
+
+    /**
+     * Reads every username from the users table, writes a new snapshot over
+     * the old one, and starts searching it.
+     *
+     * @return the number of usernames in the new snapshot
+     */
+    public int refresh() throws SQLException, IOException {
+        long startTime = System.currentTimeMillis();
+        List<String> usernames = new ArrayList<>(snapshot == null ? 1024 : snapshot.size()+1024);
+        try(Connection conn = ds.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.setFetchSize(1000);
+            try(ResultSet rs = stmt.executeQuery(QUERY_ALL_USERS)) {
+                while(rs.next()) {
+                    String username = rs.getString(1);
+                    if(username != null) {
+                        usernames.add(username);
+                    }
+                }
+            }
+        }
+
+        //Sort here instead of with ORDER BY so the order matches the snapshot's comparisons
+        usernames.sort(String.CASE_INSENSITIVE_ORDER);
+        List<String> distinct = new ArrayList<>(usernames.size());
+        for(String username : usernames) {
+            if(distinct.isEmpty() || !distinct.get(distinct.size()-1).equalsIgnoreCase(username)) {
+                distinct.add(username);
+            }
+        }
+        Path next = file.resolveSibling(file.getFileName()+"."+System.currentTimeMillis());
+        UsernameSnapshot.write(next, distinct, BLOCK_SIZE);
+        snapshot = UsernameSnapshot.open(next);
+        current = next;
+        refreshTime = System.currentTimeMillis()-startTime;
+        System.out.println("Wrote snapshot of "+distinct.size()+" usernames ("+Files.size(next)+" bytes) in "+refreshTime+"ms");
+        deleteOldSnapshots();
+        return distinct.size();
+    }
+
+    /**
+     * Deletes every snapshot but the current one, and temporary files old
+     * enough that no write is still using them. A file that is still mapped
+     * by searches of the old snapshot can't be deleted on Windows, so it is
+     * tried again after the next refresh.
+     */
+    private void deleteOldSnapshots() throws IOException {
+        List<Path> old = listSnapshots();
+        old.remove(current);
+        old.addAll(listTempFiles(System.currentTimeMillis()-TEMP_FILE_AGE));
+        for(Path file : old) {
+            try {
+                Files.deleteIfExists(file);
+            } catch(IOException ex) {
+                System.out.println("Couldn't delete old username snapshot "+file+". "+ex);
+            }
+        }
+    }
+
+    //The temporary files next to file last changed before a time, left by writes that never finished
+    private List<Path> listTempFiles(long before) throws IOException {
+        List<Path> temps = new ArrayList<>();
+        Path directory = file.getParent();
+        if(!Files.isDirectory(directory)) {
+            return temps;
+        }
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, file.getFileName()+"*.tmp")) {
+            for(Path temp : files) {
+                if(Files.getLastModifiedTime(temp).toMillis() < before) {
+                    temps.add(temp);
+                }
+            }
+        }
+        return temps;
+    }
+
+    //The snapshot files next to file, newest first
+    private List<Path> listSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        Path directory = file.getParent();
+        if(!Files.isDirectory(directory)) {
+            return snapshots;
+        }
+        String prefix = file.getFileName()+".";
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix+"*")) {
+            for(Path candidate : files) {
+                if(candidate.getFileName().toString().substring(prefix.length()).matches("[0-9]+")) {
+                    snapshots.add(candidate);
+                }
+            }
+        }
+        snapshots.sort((a, b) -> Long.compare(generation(b, prefix), generation(a, prefix)));
+        return snapshots;
+    }
+
+    private static long generation(Path snapshot, String prefix) {
+        return Long.parseLong(snapshot.getFileName().toString().substring(prefix.length()));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * StaleCache keeps the last good answer for a key so it can be shown, marked
+ * as stale, while the backend that produced it is down. The least recently
+ * used entries are dropped once the cache is full.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class StaleCache<V> {
+    private final LinkedHashMap<String,Entry<V>> entries;
+
+    public StaleCache(int maxSize) {
+        entries = new LinkedHashMap<String,Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,StaleCache.Entry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized void put(String key, V value) {
+        entries.put(key, new Entry<>(value));
+    }
+
+    //Returns the last good answer for the key, or null if there isn't one
+    public synchronized Entry<V> get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public static class Entry<V> {
+        private final V value;
+        private final long time = System.currentTimeMillis();
+
+        private Entry(V value) {
+            this.value = value;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        //When the value was cached
+        public long getTime() {
+            return time;
+        }
+    }
+}
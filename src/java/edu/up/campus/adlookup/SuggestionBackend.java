@@ -0,0 +1,64 @@
+/*
+ * SuggestionBackend finds usernames by prefix for the search box. The usual
+ * backend reads the users table in the database, and another reads the
+ * domain controller directly so suggestions work without the table.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.sql.SQLException;
+import java.util.List;
+import javax.naming.NamingException;
+
+public interface SuggestionBackend {
+
+    //A short name for logs and the status page
+    String getName();
+
+    /**
+     * Returns usernames starting with a prefix in alphabetical order.
+     *
+     * @param  prefix     the text being searched for
+     * @param  after      only return usernames after this one, or null to start at the first
+     * @param  limit      the number of usernames wanted. One more is returned if there are more.
+     * @param  countTotal whether to also count every match
+     * @return            the usernames and the number of matches
+     */
+    Page suggest(String prefix, String after, int limit, boolean countTotal) throws SQLException, NamingException;
+
+    //Latency and load of the searches done so far
+    SuggestionStats getStats();
+
+    public static class Page {
+        private final List<String> usernames;
+        private final int total;
+        private final boolean totalCapped;
+
+        /**
+         * Constructor for Page.
+         *
+         * @param  usernames   the matching usernames in alphabetical order
+         * @param  total       the number of matches, or -1 if they weren't counted
+         * @param  totalCapped whether counting stopped before reaching every match
+         */
+        public Page(List<String> usernames, int total, boolean totalCapped) {
+            this.usernames = usernames;
+            this.total = total;
+            this.totalCapped = totalCapped;
+        }
+
+        public List<String> getUsernames() {
+            return usernames;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public boolean isTotalCapped() {
+            return totalCapped;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * SuggestionBudget limits the memory used by the SuggestionStates of every
+ * login session together. When the total goes over the budget, idle sessions
+ * are cleared first and then the largest sessions are trimmed.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+public class SuggestionBudget {
+    //Sessions that haven't searched for this many milliseconds are cleared first
+    private static final long IDLE_TIME = 60000;
+    
+    //States go away with their ADLookup, so they aren't kept alive here
+    private final Set<SuggestionState> states = Collections.newSetFromMap(new WeakHashMap<>());
+    
+    private final long maxBytes;
+    private final long maxSessionBytes;
+    private final long maxAge;
+    
+    /**
+     * Constructor for SuggestionBudget.
+     * 
+     * @param  maxBytes        the most bytes all sessions can use together
+     * @param  maxSessionBytes the most bytes one session can use
+     * @param  maxAge          the number of milliseconds before a cached prefix expires
+     */
+    public SuggestionBudget(long maxBytes, long maxSessionBytes, long maxAge) {
+        this.maxBytes = maxBytes;
+        this.maxSessionBytes = maxSessionBytes;
+        this.maxAge = maxAge;
+    }
+    
+    public SuggestionState newState() {
+        SuggestionState state = new SuggestionState(maxSessionBytes, maxAge);
+        synchronized(states) {
+            states.add(state);
+        }
+        return state;
+    }
+    
+    public long getBytes() {
+        long total = 0;
+        for(SuggestionState state : snapshot()) {
+            total += state.getBytes();
+        }
+        return total;
+    }
+    
+    /**
+     * Trims sessions until all of them together fit in the budget.
+     */
+    public void enforce() {
+        //Sorted by copies of the sizes and times, since other sessions keep changing them
+        List<Usage> all = new ArrayList<>();
+        long total = 0;
+        for(SuggestionState state : snapshot()) {
+            Usage usage = new Usage(state);
+            all.add(usage);
+            total += usage.bytes;
+        }
+        if(total <= maxBytes) {
+            return;
+        }
+        
+        //Clear the sessions that have been idle the longest
+        long now = System.currentTimeMillis();
+        all.sort((a, b) -> Long.compare(a.lastUsed, b.lastUsed));
+        for(Usage usage : all) {
+            if(total <= maxBytes || now - usage.lastUsed < IDLE_TIME) {
+                break;
+            }
+            long freed = usage.state.trim(0);
+            usage.bytes -= freed;
+            total -= freed;
+        }
+        
+        //Then halve the largest sessions
+        all.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+        for(Usage usage : all) {
+            if(total <= maxBytes) {
+                break;
+            }
+            total -= usage.state.trim(usage.state.getBytes()/2);
+        }
+    }
+    
+    private List<SuggestionState> snapshot() {
+        synchronized(states) {
+            return new ArrayList<>(states);
+        }
+    }
+    
+    //A session's size and last use when enforce started
+    private static class Usage {
+        final SuggestionState state;
+        final long lastUsed;
+        long bytes;
+        
+        Usage(SuggestionState state) {
+            this.state = state;
+            lastUsed = state.getLastUsed();
+            bytes = state.getBytes();
+        }
+    }
+}
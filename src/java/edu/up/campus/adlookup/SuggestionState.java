@@ -0,0 +1,241 @@
+/*
+ * SuggestionState remembers which usernames a session's browser already has so
+ * searchUsers doesn't send them again. Completed prefixes and partly sent
+ * ranges are kept in least recently used order, and the oldest are dropped
+ * when the session goes over its size limit or the global budget.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class SuggestionState {
+    //Prefixes whose matching usernames have all been sent
+    final ConcurrentSkipListSet<String> completedSearches = new ConcurrentSkipListSet<>();
+    
+    //Ranges of usernames that were sent, marked by a start (true) and an end (false)
+    final ConcurrentSkipListMap<String,Boolean> incompleteSearches = new ConcurrentSkipListMap<>();
+    
+    //When each completed prefix and range start was added, in least recently used order
+    private final LinkedHashMap<String,Long> completedUsed = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String,Long> rangesUsed = new LinkedHashMap<>(16, 0.75f, true);
+    
+    //The approximate number of bytes used by this session's state
+    private volatile long bytes = 0;
+    
+    //When this session last searched
+    private volatile long lastUsed = System.currentTimeMillis();
+    
+    //The most bytes this session can use
+    private final long maxBytes;
+    
+    //Entries older than this many milliseconds may no longer be cached by the browser
+    private final long maxAge;
+    
+    public SuggestionState(long maxBytes, long maxAge) {
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+    }
+    
+    /**
+     * Returns true if every username starting with the given one has already
+     * been sent.
+     * 
+     * @param  username the text being searched for
+     */
+    public synchronized boolean isCompleted(String username) {
+        long now = System.currentTimeMillis();
+        lastUsed = now;
+        expireRanges(now);
+        for(int i = 1; i <= username.length(); i++) {
+            String prefix = username.substring(0, i);
+            Long added = completedUsed.get(prefix);
+            if(added != null) {
+                //Entries expire one at a time instead of all at once
+                if(now - added > maxAge) {
+                    completedUsed.remove(prefix);
+                    completedSearches.remove(prefix);
+                    bytes -= entrySize(prefix);
+                    return false;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public synchronized void addCompleted(String prefix) {
+        if(completedSearches.add(prefix)) {
+            completedUsed.put(prefix, System.currentTimeMillis());
+            bytes += entrySize(prefix);
+            trim(maxBytes);
+        }
+    }
+    
+    /**
+     * Records that the usernames from firstUsername to lastUsername were sent,
+     * merging the range with any ranges it overlaps.
+     */
+    public synchronized void combineRanges(String firstUsername, String lastUsername) {
+        if(firstUsername == null || firstUsername.isEmpty() || lastUsername == null || lastUsername.isEmpty()) {
+            return;
+        }
+        Entry<String,Boolean> firstEntry = incompleteSearches.floorEntry(firstUsername);
+        Entry<String,Boolean> lastEntry = incompleteSearches.ceilingEntry(lastUsername);
+        Map<String,Boolean> toRemove = null;
+        
+        //Get the subMap between firstEntry and lastEntry even if one of them is null
+        if(firstEntry == null && lastEntry != null) {
+            toRemove = incompleteSearches.headMap(lastEntry.getKey(),false);
+        }
+        else if(firstEntry != null && lastEntry == null) {
+            toRemove = incompleteSearches.tailMap(firstEntry.getKey(),false);
+        }
+        else if(firstEntry != null && lastEntry != null) {
+            toRemove = incompleteSearches.subMap(firstEntry.getKey(),false,lastEntry.getKey(),false);
+        }
+        
+        //Remove all entries between this range
+        if(toRemove != null) {
+            for(String key : toRemove.keySet().toArray(new String[0])) {
+                removeRangeKey(key);
+            }
+        }
+        
+        //Have to create a new starting entry if no overlap
+        if(firstEntry == null || firstEntry.getValue() == false) {
+            incompleteSearches.put(firstUsername, Boolean.TRUE);
+            rangesUsed.put(firstUsername, System.currentTimeMillis());
+            bytes += entrySize(firstUsername);
+            //System.out.println("Added range start at "+firstUsername);
+        }
+        else {
+            //Count the merged range as used
+            rangesUsed.get(firstEntry.getKey());
+        }
+
+        //Have to create a new ending entry if no overlap
+        if(lastEntry == null || lastEntry.getValue() == true) {
+            incompleteSearches.put(lastUsername, Boolean.FALSE);
+            bytes += entrySize(lastUsername);
+            //System.out.println("Added range end at "+lastUsername);
+        }
+        trim(maxBytes);
+    }
+    
+    /**
+     * Drops the least recently used entries until this session uses at most
+     * the given number of bytes.
+     * 
+     * @param  targetBytes the most bytes to keep
+     * @return             the number of bytes freed
+     */
+    public synchronized long trim(long targetBytes) {
+        long before = bytes;
+        while(bytes > targetBytes && !(completedUsed.isEmpty() && rangesUsed.isEmpty())) {
+            //Drop whichever entry is older
+            Entry<String,Long> oldestCompleted = completedUsed.isEmpty() ? null : completedUsed.entrySet().iterator().next();
+            Entry<String,Long> oldestRange = rangesUsed.isEmpty() ? null : rangesUsed.entrySet().iterator().next();
+            if(oldestRange == null || (oldestCompleted != null && oldestCompleted.getValue() <= oldestRange.getValue())) {
+                String prefix = oldestCompleted.getKey();
+                completedUsed.remove(prefix);
+                completedSearches.remove(prefix);
+                bytes -= entrySize(prefix);
+            }
+            else {
+                //Remove the range's start and its end together
+                String start = oldestRange.getKey();
+                String end = incompleteSearches.higherKey(start);
+                removeRangeKey(start);
+                if(end != null && Boolean.FALSE.equals(incompleteSearches.get(end))) {
+                    removeRangeKey(end);
+                }
+            }
+        }
+        return before - bytes;
+    }
+    
+    /**
+     * Forgets the completed prefixes the browser says it doesn't have, so
+     * they are searched and sent again. Sent ranges can't be checked against
+     * the manifest, so they are only forgotten when the browser has nothing.
+     * 
+     * @param  manifest the prefixes the browser has every suggestion for
+     * @return          the prefixes forgotten, most recently used first
+     */
+    public synchronized List<String> reconcile(PrefixManifest manifest) {
+        lastUsed = System.currentTimeMillis();
+        List<String> forgotten = new ArrayList<>();
+        for(String prefix : completedUsed.keySet()) {
+            if(manifest.isEmpty() || !manifest.mightContain(prefix)) {
+                forgotten.add(prefix);
+            }
+        }
+        if(manifest.isEmpty()) {
+            clear();
+        }
+        else {
+            for(String prefix : forgotten) {
+                completedUsed.remove(prefix);
+                completedSearches.remove(prefix);
+                bytes -= entrySize(prefix);
+            }
+        }
+        Collections.reverse(forgotten);
+        return forgotten;
+    }
+    
+    public synchronized void clear() {
+        completedSearches.clear();
+        incompleteSearches.clear();
+        completedUsed.clear();
+        rangesUsed.clear();
+        bytes = 0;
+    }
+    
+    public long getBytes() {
+        return bytes;
+    }
+    
+    public long getLastUsed() {
+        return lastUsed;
+    }
+    
+    //Sent ranges expire one at a time like completed prefixes
+    private void expireRanges(long now) {
+        List<String> expired = new ArrayList<>();
+        for(Entry<String,Long> range : rangesUsed.entrySet()) {
+            if(now - range.getValue() > maxAge) {
+                expired.add(range.getKey());
+            }
+        }
+        for(String start : expired) {
+            String end = incompleteSearches.higherKey(start);
+            removeRangeKey(start);
+            if(end != null && Boolean.FALSE.equals(incompleteSearches.get(end))) {
+                removeRangeKey(end);
+            }
+        }
+    }
+    
+    private void removeRangeKey(String key) {
+        if(incompleteSearches.remove(key) != null) {
+            rangesUsed.remove(key);
+            bytes -= entrySize(key);
+        }
+    }
+    
+    //Roughly the memory used by a string in a skip list and a linked hash map
+    private static long entrySize(String key) {
+        return 96 + 2L*key.length();
+    }
+}
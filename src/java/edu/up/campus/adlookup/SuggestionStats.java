@@ -0,0 +1,59 @@
+/*
+ * SuggestionStats counts how long a SuggestionBackend takes and how much work
+ * it asks of the database or domain controller, so backends can be compared.
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.concurrent.TimeUnit;
+
+public class SuggestionStats {
+    private long calls = 0;
+    private long errors = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    //Queries or LDAP searches sent to the backend
+    private long operations = 0;
+
+    //Rows or entries the backend sent back
+    private long entries = 0;
+
+    public synchronized void record(long nanos, int operations, int entries) {
+        calls++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+        this.operations += operations;
+        this.entries += entries;
+    }
+
+    public synchronized void recordError() {
+        errors++;
+    }
+
+    public synchronized long getCalls() {
+        return calls;
+    }
+
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    public synchronized double getAverageMillis() {
+        return calls == 0 ? 0 : (double)totalNanos/calls/TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized double getMaxMillis() {
+        return (double)maxNanos/TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public synchronized long getOperations() {
+        return operations;
+    }
+
+    public synchronized long getEntries() {
+        return entries;
+    }
+}
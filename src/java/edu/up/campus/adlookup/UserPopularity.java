@@ -0,0 +1,93 @@
+/*
+ * UserPopularity counts how often each user is looked up so suggestions can
+ * show the users operators look for most. Counts are halved periodically so
+ * recent lookups matter more than old ones.
+ * 
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class UserPopularity {
+    //Counts by lowercase username, sorted so a prefix is a contiguous range
+    private final ConcurrentSkipListMap<String,Count> counts = new ConcurrentSkipListMap<>();
+    
+    /**
+     * Counts a lookup of a user.
+     * 
+     * @param  username the user's sAMAccountName as the domain controller returned it, which is shown in suggestions
+     */
+    public void record(String username) {
+        if(username == null || username.isEmpty()) {
+            return;
+        }
+        String key = username.toLowerCase(Locale.ROOT);
+        Count count = counts.get(key);
+        if(count == null) {
+            Count created = new Count(username);
+            count = counts.putIfAbsent(key, created);
+            if(count == null) {
+                count = created;
+            }
+        }
+        count.username = username;
+        count.lookups.incrementAndGet();
+    }
+    
+    public int get(String username) {
+        Count count = counts.get(username.toLowerCase(Locale.ROOT));
+        return count == null ? 0 : count.lookups.get();
+    }
+    
+    /**
+     * Returns the most looked up usernames starting with a prefix, most
+     * popular first.
+     * 
+     * @param  prefix the text the usernames start with
+     * @param  limit  the maximum number of usernames
+     */
+    public List<String> top(String prefix, int limit) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        //Sort copies of the counts, since lookups keep changing them
+        List<Map.Entry<String,Integer>> matches = new ArrayList<>();
+        for(Count count : counts.subMap(key, true, key + Character.MAX_VALUE, false).values()) {
+            matches.add(new AbstractMap.SimpleImmutableEntry<>(count.username, count.lookups.get()));
+        }
+        matches.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        List<String> usernames = new ArrayList<>(Math.min(limit, matches.size()));
+        for(int i = 0; i < matches.size() && i < limit; i++) {
+            usernames.add(matches.get(i).getKey());
+        }
+        return usernames;
+    }
+    
+    //Halves every count and forgets users that are no longer looked up
+    public void decay() {
+        Iterator<Count> it = counts.values().iterator();
+        while(it.hasNext()) {
+            Count count = it.next();
+            if(count.lookups.updateAndGet((lookups) -> lookups/2) == 0) {
+                it.remove();
+            }
+        }
+    }
+    
+    private static class Count {
+        //The casing the domain controller returned most recently
+        volatile String username;
+        final AtomicInteger lookups = new AtomicInteger();
+        
+        Count(String username) {
+            this.username = username;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * UsernameSnapshot is a file of every username in the users table, so prefix
+ * searches can be answered right after a restart without reading the table.
+ * The usernames are sorted without regard to case and front coded: each one
+ * only stores the bytes that differ from the one before it. Every block of
+ * usernames starts with a full username, and a sparse index of block offsets
+ * at the end of the file lets a prefix be found with a binary search. The
+ * file is memory mapped, so it is read from the page cache instead of the
+ * heap.
+ *
+ *   header: magic, version, count, block size, blocks, created, index offset
+ *   blocks: shared prefix length, suffix length, suffix bytes, for each username
+ *   index:  the offset of each block
+ *
+ * @author Matthew Yuen
+ * @author Anthony Donaldson
+ */
+package edu.up.campus.adlookup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class UsernameSnapshot {
+    private static final int MAGIC = 0x41444c55;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 36;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int blockSize;
+    private final int blocks;
+    private final long created;
+    private final int indexOffset;
+
+    private UsernameSnapshot(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if(buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a username snapshot");
+        }
+        count = buffer.getInt(8);
+        blockSize = buffer.getInt(12);
+        blocks = buffer.getInt(16);
+        created = buffer.getLong(20);
+        indexOffset = (int)buffer.getLong(28);
+        if(blockSize < 1 || indexOffset < HEADER_BYTES || indexOffset+4L*blocks != buffer.capacity()) {
+            throw new IOException("Username snapshot is truncated");
+        }
+    }
+
+    /**
+     * Maps a snapshot file. The file must not be changed or replaced while it
+     * is mapped, so newer snapshots are written to new files.
+     *
+     * @param  file the snapshot to open
+     * @return      the snapshot
+     */
+    public static UsernameSnapshot open(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new UsernameSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a snapshot to a temporary file and renames it, so a crash part
+     * way through never leaves half a file. The file must not exist yet,
+     * because a mapped file can't be replaced on Windows.
+     *
+     * @param  file      where to write the snapshot
+     * @param  usernames the usernames sorted with String.CASE_INSENSITIVE_ORDER
+     * @param  blockSize the number of usernames between index entries
+     */
+    public static void write(Path file, List<String> usernames, int blockSize) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                writeTo(channel, usernames, blockSize);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeTo(FileChannel channel, List<String> usernames, int blockSize) throws IOException {
+        int blocks = (usernames.size()+blockSize-1)/blockSize;
+        int[] offsets = new int[blocks];
+
+        //The header is written last, once the index offset is known
+        channel.position(HEADER_BYTES);
+        CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)), HEADER_BYTES);
+        DataOutputStream out = new DataOutputStream(counter);
+        byte[] previous = new byte[0];
+        for(int i = 0; i < usernames.size(); i++) {
+            byte[] current = usernames.get(i).getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            if(i % blockSize == 0) {
+                offsets[i/blockSize] = (int)counter.getCount();
+            }
+            else {
+                int max = Math.min(previous.length, current.length);
+                while(shared < max && previous[shared] == current[shared]) {
+                    shared++;
+                }
+            }
+            writeVarInt(out, shared);
+            writeVarInt(out, current.length-shared);
+            out.write(current, shared, current.length-shared);
+            previous = current;
+        }
+        long indexOffset = counter.getCount();
+        if(indexOffset+4L*blocks > Integer.MAX_VALUE) {
+            throw new IOException("Too many usernames for one snapshot");
+        }
+        for(int offset : offsets) {
+            out.writeInt(offset);
+        }
+        out.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(usernames.size()).putInt(blockSize).putInt(blocks)
+              .putLong(System.currentTimeMillis()).putLong(indexOffset).flip();
+        channel.position(0);
+        while(header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    //When the snapshot was written
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Visits the usernames starting with a prefix in order, ignoring case.
+     *
+     * @param  prefix  the text being searched for
+     * @param  after   only visit usernames after this one, or null to start at the first
+     * @param  visitor receives each username
+     */
+    public void forEach(String prefix, String after, UsernameVisitor visitor) {
+        String start = after != null && after.compareToIgnoreCase(prefix) > 0 ? after : prefix;
+        int[] pos = new int[]{offset(findBlock(start))};
+        byte[] previous = null;
+        while(pos[0] < indexOffset) {
+            previous = next(pos, previous);
+            String username = new String(previous, StandardCharsets.UTF_8);
+            if(username.compareToIgnoreCase(prefix) < 0 || (after != null && username.compareToIgnoreCase(after) <= 0)) {
+                continue;
+            }
+            if(!username.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                return;
+            }
+            if(!visitor.visit(username)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns usernames starting with a prefix like the users table does.
+     *
+     * @param  prefix the text being searched for
+     * @param  after  only return usernames after this one, or null to start at the first
+     * @param  limit  the most usernames to return
+     */
+    public List<String> find(String prefix, String after, int limit) {
+        List<String> usernames = new ArrayList<>(Math.min(limit, 64));
+        if(limit > 0) {
+            forEach(prefix, after, (username) -> {
+                usernames.add(username);
+                return usernames.size() < limit;
+            });
+        }
+        return usernames;
+    }
+
+    //Counts usernames starting with a prefix, stopping at cap
+    public int count(String prefix, int cap) {
+        int[] matches = new int[1];
+        forEach(prefix, null, (username) -> ++matches[0] < cap);
+        return matches[0];
+    }
+
+    //Finds the last block whose first username sorts before key, since the matches can start at the end of it
+    private int findBlock(String key) {
+        int low = 0;
+        int high = blocks-1;
+        int found = 0;
+        while(low <= high) {
+            int mid = (low+high) >>> 1;
+            int[] pos = new int[]{offset(mid)};
+            String first = new String(next(pos, null), StandardCharsets.UTF_8);
+            if(first.compareToIgnoreCase(key) < 0) {
+                found = mid;
+                low = mid+1;
+            }
+            else {
+                high = mid-1;
+            }
+        }
+        return found;
+    }
+
+    private int offset(int block) {
+        return blocks == 0 ? indexOffset : buffer.getInt(indexOffset+4*block);
+    }
+
+    //Decodes the username at pos and moves pos past it. The first username of a block shares nothing with previous.
+    private byte[] next(int[] pos, byte[] previous) {
+        int shared = readVarInt(pos);
+        int suffix = readVarInt(pos);
+        byte[] current = new byte[shared+suffix];
+        if(shared > 0) {
+            System.arraycopy(previous, 0, current, 0, shared);
+        }
+        //Absolute reads so many threads can share the buffer
+        for(int i = 0; i < suffix; i++) {
+            current[shared+i] = buffer.get(pos[0]+i);
+        }
+        pos[0] += suffix;
+        return current;
+    }
+
+    private int readVarInt(int[] pos) {
+        int value = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = buffer.get(pos[0]++);
+            value |= (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public interface UsernameVisitor {
+        //Return false to stop visiting usernames
+        boolean visit(String username);
+    }
+
+    //Tracks the file offset of what has been written
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out, long count) {
+            this.out = out;
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
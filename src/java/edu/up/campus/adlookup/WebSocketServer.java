@@ -16,7 +16,10 @@ import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.enterprise.context.ApplicationScoped;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;   
 import java.util.logging.Level;
@@ -53,25 +56,66 @@ public class WebSocketServer {
             if ("login".equals(action)) {
                 String username = jsonMessage.getString("username");
                 String password = jsonMessage.getString("password");
-                System.out.println("Logging in as " + username);
                 sessionHandler.login(session, username, password);
             }
             else if ("getuserinfo".equals(action)) {
                 String username = jsonMessage.getString("user");
-                System.out.println("Getting user info for " + username);
                 sessionHandler.getUserInfo(session, username);
             }
             else if("unlock".equals(action)) {
                 String username = jsonMessage.getString("user");
-                System.out.println("Unlocking " + username + "'s account");
                 sessionHandler.unlock(session, username);
             }
+            else if("bulkunlock".equals(action)) {
+                List<String> usernames = new ArrayList<>();
+                JsonArray users = jsonMessage.getJsonArray("users");
+                for(int i = 0; i < users.size(); i++) {
+                    usernames.add(users.getString(i));
+                }
+                sessionHandler.bulkUnlock(session, usernames);
+            }
+            else if("watch".equals(action)) {
+                List<String> usernames = new ArrayList<>();
+                JsonArray users = jsonMessage.getJsonArray("users");
+                if(users != null) {
+                    for(int i = 0; i < users.size(); i++) {
+                        usernames.add(users.getString(i));
+                    }
+                }
+                sessionHandler.watchLockouts(session, usernames, jsonMessage.getBoolean("any", false));
+            }
+            else if("unwatch".equals(action)) {
+                sessionHandler.unwatchLockouts(session);
+            }
             else if("suggestion".equals(action)) {
                 String username = jsonMessage.getString("user");
                 long timestamp = jsonMessage.getJsonNumber("timestamp").bigDecimalValue().longValue();
                 //System.out.println("Searching for " + username);
                 sessionHandler.searchUsers(session, username,timestamp);
             }
+            else if("topsuggestion".equals(action)) {
+                String username = jsonMessage.getString("user");
+                int limit = Math.max(1, Math.min(jsonMessage.getInt("limit", 8), 50));
+                String after = jsonMessage.getString("after", null);
+                sessionHandler.topSuggestions(session, username, limit, after);
+            }
+            else if("manifest".equals(action)) {
+                PrefixManifest manifest = PrefixManifest.decode(jsonMessage.getString("bits"), jsonMessage.getInt("size"),
+                        jsonMessage.getInt("hashes"), jsonMessage.getInt("count"));
+                if(manifest != null) {
+                    sessionHandler.reconcileSuggestions(session, manifest);
+                }
+            }
+            else if("search".equals(action)) {
+                String text = jsonMessage.getString("query");
+                int limit = Math.max(1, Math.min(jsonMessage.getInt("limit", 8), 50));
+                sessionHandler.searchPeople(session, text, limit);
+            }
+            else if("report".equals(action)) {
+                String report = jsonMessage.getString("report");
+                int days = jsonMessage.getInt("days", 14);
+                sessionHandler.runReport(session, report, days);
+            }
             else if("cachedlogin".equals(action)) {
                 String token = jsonMessage.get("token").toString();
                 sessionHandler.login(session,token);
@@ -82,6 +126,9 @@ public class WebSocketServer {
             else if("keepalive".equals(action)) {
                 sessionHandler.keepLoginSession(session);
             }
+            else if("status".equals(action)) {
+                sessionHandler.sendStatus(session);
+            }
             else {
                 System.out.println("Invalid action: "+action);
             }
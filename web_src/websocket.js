@@ -3,6 +3,15 @@ var user = "";
 var ubutton = null;
 var lockMsg = null;
 var userSuggestions = null;
+var peopleQuery = "";
+var peopleCallback = null;
+var reportBody = null;
+var reportCaption = null;
+var reportRows = 0;
+var reportUsers = {};
+var watchedUser = "";
+var watchAll = false;
+var suggestionPages = {};
 //var startTime = 0;
 function onMessage(event) {
     var info = JSON.parse(event.data);
@@ -18,6 +27,9 @@ function onMessage(event) {
             
             //Save the login token
             window.localStorage.setItem("token",info.token);
+            
+            //Tell the server which suggestions this page still has
+            sendManifest();
         }
         else {
             //Display the login error message
@@ -29,6 +41,27 @@ function onMessage(event) {
         document.getElementById("usererror").style.display = 'none';
         document.getElementById("content").style.display = '';
         displayUserInfo(info);
+        
+        //Get notified if this account gets locked out again
+        sendWatch();
+    }
+    else if (info.action === "usergroups"){
+        //Fill in the groups of the user being shown
+        var groupsCell = document.getElementById("groupscell");
+        if (groupsCell !== null && info.user.toLowerCase() === watchedUser.toLowerCase()) {
+            groupsCell.innerHTML = info.memberof;
+        }
+    }
+    else if (info.action === "lockoutalert"){
+        var alert = document.getElementById("lockoutalert");
+        alert.innerHTML = escapeHtml(info.user)+" was locked out at "+escapeHtml(info.lockouttime);
+        alert.style.display = '';
+        alert.onclick = reportLookup(info.user);
+        
+        //Refresh the account being shown instead of polling for it
+        if (info.user.toLowerCase() === watchedUser.toLowerCase()) {
+            reportLookup(info.user)();
+        }
     }
     else if (info.action === "locked"){
         //Unlock failed
@@ -51,6 +84,11 @@ function onMessage(event) {
             content.removeChild(content.firstChild);
         }
     }
+    else if (info.action === "unavailable"){
+        //The server can't reach the domain controller and has nothing cached
+        document.getElementById("usererror").innerHTML = 'The domain controller is unavailable. Try again later.';
+        document.getElementById("usererror").style.display = '';
+    }
     else if (info.action === "nouser"){
         //User not found, so show error and clear content div
         var form = document.getElementById("userinfoForm");
@@ -69,6 +107,9 @@ function onMessage(event) {
         
         //Add users to typeahead engine
         userSuggestions.add(info.suggestion);
+        if (info.complete) {
+            suggestionPages[info.user] = {more: false, last: "", requested: false};
+        }
         
         //Refresh typeahead by clearing and setting the username
         var prevVal = document.getElementById("userinfoForm").elements["User"].value;
@@ -77,17 +118,76 @@ function onMessage(event) {
         //now = performance.now()-startTime;
         //console.log("Suggestions added after "+now+" ms.");
     }
+    else if (info.action === "topsuggestion"){
+        //Add users to typeahead engine and remember where the next page starts
+        userSuggestions.add(info.suggestion);
+        
+        //Stale suggestions from an outage may be incomplete, so ask again next time
+        if (!info.stale) {
+            suggestionPages[info.user] = {more: info.more, last: info.last, requested: false};
+        }
+        
+        var prevUser = document.getElementById("userinfoForm").elements["User"].value;
+        $('.typeahead').typeahead('val','').typeahead('val',prevUser);
+    }
+    else if (info.action === "searchresults"){
+        //Show matching people if the results are for the latest query
+        if (peopleCallback !== null && info.query === peopleQuery) {
+            peopleCallback(info.results);
+            peopleCallback = null;
+        }
+    }
+    else if (info.action === "reportchunk"){
+        //Add each page of the report to the table as it arrives
+        appendReportRows(info);
+    }
+    else if (info.action === "reportdone"){
+        if (reportCaption !== null) {
+            if (info.error) {
+                reportCaption.nodeValue = info.error;
+            }
+            else {
+                reportCaption.nodeValue = info.total+" accounts";
+                if (info.report === "locked" && info.total > 0) {
+                    showUnlockAll();
+                }
+            }
+        }
+    }
+    else if (info.action === "bulkunlockresult"){
+        //Mark each account in the report as it is unlocked
+        var row = reportUsers[info.user.toLowerCase()];
+        if (row) {
+            row.lastChild.firstChild.nodeValue = info.success ? "Unlocked" : "Failed";
+        }
+        if (reportCaption !== null) {
+            reportCaption.nodeValue = "Unlocking... "+info.done+" of "+info.total;
+        }
+    }
+    else if (info.action === "bulkunlockdone"){
+        if (reportCaption !== null && info.error) {
+            reportCaption.nodeValue = info.error;
+        }
+        else if (reportCaption !== null) {
+            reportCaption.nodeValue = "Unlocked "+info.succeeded+" of "+info.total+" accounts";
+        }
+    }
     else if (info.action === "cachedlogin" && info.message === "failed"){
         //Show the login page and delete the bad token
         document.getElementById("begin").style.display = '';
         window.localStorage.removeItem("token");
     }
+    else if (info.action === "status"){
+        //Detailed server status, asked for from the browser console
+        console.log(info.status);
+    }
     else if (info.action === "keepalive"){
         //Send a keepalive to the server to prevent the session from expiring
         var getUserInfoAction = {
             action: "keepalive"
         };
         sendToSocket(JSON.stringify(getUserInfoAction));
+        sendManifest();
     }
 }
 
@@ -113,7 +213,7 @@ function displayUserInfo(info){
         "Account Expiration Date":info.accountexpires,
         "Other Email":info.othermailbox,
         "Bad Password Count":info.badpwdcount,
-        "Groups":info.memberof
+        "Groups":info.memberof || "Loading..."
     };
     for(var prop in tableContents) {
         var tr = document.createElement("tr");
@@ -121,6 +221,9 @@ function displayUserInfo(info){
         th.appendChild(document.createTextNode(prop));
         var td = document.createElement("td");
         td.innerHTML = tableContents[prop];
+        if(prop === "Groups") {
+            td.setAttribute("id","groupscell");
+        }
         tr.appendChild(th);
         tr.appendChild(td);
         tablebody.appendChild(tr);
@@ -140,7 +243,107 @@ function displayUserInfo(info){
         tablebody.appendChild(tr);
     }
     table.appendChild(tablebody);
+    if(info.stale) {
+        //Shown from the server's cache while the domain controller is down
+        var caption = document.createElement("caption");
+        caption.appendChild(document.createTextNode("The domain controller is unavailable. Showing info from "+info.cachedat+"."));
+        table.appendChild(caption);
+    }
+    contentDiv.appendChild(table);
+}
+var reportColumns = {
+    "locked": {
+        "Username":"username",
+        "Full Name":"displayname",
+        "Locked Since":"lockouttime",
+        "Bad Password Count":"badpwdcount"
+    },
+    "expiring": {
+        "Username":"username",
+        "Full Name":"displayname",
+        "Password Last Changed":"pwdlastset",
+        "Password Set to Expire":"passwordsettoexpire",
+        "Days Left":"daysleft"
+    }
+};
+function displayReport(report){
+    var content = document.getElementById("content");
+    if (content.firstChild) {
+        content.removeChild(content.firstChild);
+    }
+    document.getElementById("usererror").style.display = 'none';
+    content.style.display = '';
+    var contentDiv = document.createElement("div");
+    content.appendChild(contentDiv);
+    var table = document.createElement("table");
+    table.setAttribute("class","table");
+    var caption = document.createElement("caption");
+    reportCaption = document.createTextNode("Loading...");
+    caption.appendChild(reportCaption);
+    table.appendChild(caption);
+    var thead = document.createElement("thead");
+    var tr = document.createElement("tr");
+    for(var column in reportColumns[report]) {
+        var th = document.createElement("th");
+        th.appendChild(document.createTextNode(column));
+        tr.appendChild(th);
+    }
+    thead.appendChild(tr);
+    table.appendChild(thead);
+    reportBody = document.createElement("tbody");
+    reportBody.setAttribute("data-report",report);
+    table.appendChild(reportBody);
     contentDiv.appendChild(table);
+    reportRows = 0;
+    reportUsers = {};
+}
+function appendReportRows(info){
+    if (reportBody === null || reportBody.getAttribute("data-report") !== info.report) {
+        return;
+    }
+    var columns = reportColumns[info.report];
+    for(var i = 0; i < info.rows.length; i++) {
+        var row = info.rows[i];
+        var tr = document.createElement("tr");
+        for(var column in columns) {
+            var td = document.createElement("td");
+            td.appendChild(document.createTextNode(row[columns[column]]));
+            tr.appendChild(td);
+        }
+        //Look up the account when its row is clicked
+        tr.onclick = reportLookup(row.username);
+        reportBody.appendChild(tr);
+        reportUsers[row.username.toLowerCase()] = tr;
+    }
+    reportRows += info.rows.length;
+    reportCaption.nodeValue = "Loading... "+reportRows+" accounts so far";
+}
+function showUnlockAll(){
+    var button = document.createElement("button");
+    button.innerHTML = "Unlock All";
+    button.setAttribute("class","btn btn-secondary bluebutton");
+    button.onclick = function() {
+        button.style.display = 'none';
+        var users = [];
+        for(var username in reportUsers) {
+            var status = document.createElement("td");
+            status.appendChild(document.createTextNode("Pending"));
+            reportUsers[username].appendChild(status);
+            users.push(reportUsers[username].firstChild.firstChild.nodeValue);
+        }
+        var bulkUnlockAction = {
+            action: "bulkunlock",
+            users: users
+        };
+        sendToSocket(JSON.stringify(bulkUnlockAction));
+    };
+    reportBody.parentNode.parentNode.insertBefore(button, reportBody.parentNode);
+}
+function reportLookup(username){
+    return function() {
+        document.getElementById("userinfoForm").elements["User"].value = username;
+        formGetUserInfo();
+    };
 }
 function sendToSocket(message) {
     if(!socket || (socket && socket.readyState === socket.CLOSED)) {
@@ -165,6 +368,28 @@ function formUnlock(){
         sendToSocket(JSON.stringify(unlockUser));
     }
 }
+function formReport(report){
+    displayReport(report);
+    var reportAction = {
+        action: "report",
+        report: report,
+        days: 14
+    };
+    sendToSocket(JSON.stringify(reportAction));
+}
+function sendWatch(){
+    var watchAction = {
+        action: "watch",
+        users: watchedUser ? [watchedUser] : [],
+        any: watchAll
+    };
+    sendToSocket(JSON.stringify(watchAction));
+}
+function formWatchAll(){
+    watchAll = !watchAll;
+    document.getElementById("watchbutton").innerHTML = watchAll ? "Stop Watching" : "Watch Lockouts";
+    sendWatch();
+}
 function formLogin(){
     var form = document.getElementById("loginForm");
     var username = form.elements["Username"].value;
@@ -194,6 +419,7 @@ function tokenLogin() {
 function formGetUserInfo(){
     var form = document.getElementById("userinfoForm");
     user = form.elements["User"].value;
+    watchedUser = user;
     document.getElementById("loginForm").style.display = "none";
     var getUserInfoAction = {
         action: "getuserinfo",
@@ -210,19 +436,103 @@ function searchUsers(e){
         formGetUserInfo(null);
     }
     user = form.elements["User"].value;
-    var now = Date.now();
     
-    if(user.length > 0) {
+    if(user.length > 0 && !allSuggested(user)) {
         var getUserInfoAction = {
-            action: "suggestion",
+            action: "topsuggestion",
             user: user,
-            timestamp: now
+            limit: 8
         };
         sendToSocket(JSON.stringify(getUserInfoAction));
         //startTime = performance.now();
     }
     return false;
 }
+function allSuggested(prefix){
+    //Every match is already in the typeahead engine if a shorter prefix had no more pages
+    for(var i = 1; i <= prefix.length; i++) {
+        var page = suggestionPages[prefix.substring(0, i)];
+        if(page && !page.more) {
+            return true;
+        }
+    }
+    return false;
+}
+function sendManifest(){
+    //Send a Bloom filter of the prefixes this page has every suggestion for
+    var prefixes = [];
+    for(var prefix in suggestionPages) {
+        if(!suggestionPages[prefix].more) {
+            prefixes.push(prefix);
+        }
+    }
+    var hashes = 7;
+    var size = Math.max(64, Math.ceil(prefixes.length*10/8)*8);
+    var bits = new Uint8Array(size/8);
+    for(var i = 0; i < prefixes.length; i++) {
+        //FNV-1a with two offset bases like PrefixManifest.java
+        var h1 = 0x811c9dc5;
+        var h2 = 0x2f1a9d3b;
+        for(var j = 0; j < prefixes[i].length; j++) {
+            var c = prefixes[i].charCodeAt(j);
+            h1 = Math.imul(h1 ^ c, 0x01000193);
+            h2 = Math.imul(h2 ^ c, 0x01000193);
+        }
+        h2 |= 1;
+        for(var k = 0; k < hashes; k++) {
+            var bit = ((h1 + Math.imul(k, h2)) >>> 0) % size;
+            bits[bit >>> 3] |= 1 << (bit & 7);
+        }
+    }
+    var binary = "";
+    for(var b = 0; b < bits.length; b++) {
+        binary += String.fromCharCode(bits[b]);
+    }
+    var manifestAction = {
+        action: "manifest",
+        bits: btoa(binary),
+        size: size,
+        hashes: hashes,
+        count: prefixes.length
+    };
+    sendToSocket(JSON.stringify(manifestAction));
+}
+function moreSuggestions(ev, suggestions, async, dataset){
+    //Ask for the next page when the list isn't full and the server has more
+    var prefix = document.getElementById("userinfoForm").elements["User"].value;
+    var page = suggestionPages[prefix];
+    if(dataset !== 'userSuggestions' || suggestions.length >= 8 || !page || !page.more || page.requested) {
+        return;
+    }
+    page.requested = true;
+    var nextPageAction = {
+        action: "topsuggestion",
+        user: prefix,
+        limit: 8,
+        after: page.last
+    };
+    sendToSocket(JSON.stringify(nextPageAction));
+}
+function searchPeople(query, sync, async){
+    //Search names, emails, and employee IDs on the server
+    if(query.length < 2) {
+        sync([]);
+        return;
+    }
+    peopleQuery = query;
+    peopleCallback = async;
+    var searchAction = {
+        action: "search",
+        query: query,
+        limit: 8
+    };
+    sendToSocket(JSON.stringify(searchAction));
+}
+function escapeHtml(text){
+    var div = document.createElement("div");
+    div.appendChild(document.createTextNode(text));
+    return div.innerHTML;
+}
 function init() {
     ubutton = document.createElement("button");
     ubutton.innerHTML = "Unlock";
@@ -245,11 +555,24 @@ function init() {
         name: 'userSuggestions',
         source: userSuggestions,
         limit: 8
+    },
+    {
+        name: 'peopleSearch',
+        source: searchPeople,
+        async: true,
+        limit: 8,
+        display: 'username',
+        templates: {
+            suggestion: function(person) {
+                return '<div>'+escapeHtml(person.displayname)+' <small>'+escapeHtml(person.username)+'</small></div>';
+            }
+        }
     });
     
     $('.typeahead').bind('typeahead:select', function(ev, suggestion) {
         formGetUserInfo();
     });
+    $('.typeahead').bind('typeahead:render', moreSuggestions);
 
     document.getElementById("Userbox").onkeyup = searchUsers;
     socket = new WebSocket("ws"+ (window.location.protocol === 'https:' ? 's' : '')+"://"+window.location.host+window.location.pathname+"actions");
@@ -1,2 +1,2 @@
 
-var socket=null;var user="";var ubutton=null;var lockMsg=null;var userSuggestions=null;function onMessage(e){var f=JSON.parse(e.data);if(f.action==="loginresponse"){if(f.message==="success"){document.getElementById("loginerror").style.display="none";document.getElementById("begin").style.display="none";document.getElementById("middle").style.display="";document.getElementById("Userbox").focus();window.localStorage.setItem("token",f.token)}else{document.getElementById("loginerror").style.display=""}}else{if(f.action==="userinfo"){document.getElementById("usererror").style.display="none";document.getElementById("content").style.display="";displayUserInfo(f)}else{if(f.action==="locked"){ubutton.style.display="none";lockMsg.nodeValue="Locked";displayUserInfo(f)}else{if(f.action==="unlocked"){ubutton.style.display="none";lockMsg.nodeValue="Unlocked"}else{if(f.action==="nologin"){document.getElementById("loginerror").style.display="none";document.getElementById("begin").style.display="";document.getElementById("middle").style.display="none";var d=document.getElementById("content");if(d.firstChild){d.removeChild(d.firstChild)}}else{if(f.action==="nouser"){var c=document.getElementById("userinfoForm");var a=c.elements.User.value;document.getElementById("usererror").innerHTML=a+" not found";document.getElementById("usererror").style.display="";document.getElementById("content").style.display="none";var d=document.getElementById("content");if(d.firstChild){d.removeChild(d.firstChild)}}else{if(f.action==="suggestion"){userSuggestions.add(f.suggestion);var g=document.getElementById("userinfoForm").elements.User.value;$(".typeahead").typeahead("val","").typeahead("val",g)}else{if(f.action==="cachedlogin"&&f.message==="failed"){document.getElementById("begin").style.display="";window.localStorage.removeItem("token")}else{if(f.action==="keepalive"){var b={action:"keepalive"};sendToSocket(JSON.stringify(b))}}}}}}}}}}function displayUserInfo(c){var f=document.getElementById("content");if(f.firstChild){f.removeChild(f.firstChild)}var d=document.createElement("div");f.appendChild(d);var j=document.createElement("table");j.setAttribute("class","table");var i=document.createElement("tbody");var g={"Full Name":c.displayname,Email:c.mailnickname,"UP ID":c.employeeid,"Password Last Changed":c.pwdlastset,"Password Set to Expire":c.passwordsettoexpire,"Days Before Password Expires":c.daysleft,"Last Login":c.lastlogon,"Last Bad Password":c.badpasswordtime,"Account Expiration Date":c.accountexpires,"Other Email":c.othermailbox,"Bad Password Count":c.badpwdcount,Groups:c.memberof};for(var a in g){var h=document.createElement("tr");var b=document.createElement("th");b.appendChild(document.createTextNode(a));var e=document.createElement("td");e.innerHTML=g[a];h.appendChild(b);h.appendChild(e);i.appendChild(h)}if(c.lockouttime!=="N/A"&&c.lockouttime!=="0"){var h=document.createElement("tr");var b=document.createElement("th");b.appendChild(document.createTextNode("Locked Status"));var e=document.createElement("td");e.appendChild(ubutton);e.setAttribute("id","unlockcell");e.appendChild(lockMsg);e.appendChild(ubutton);h.appendChild(b);h.appendChild(e);i.appendChild(h)}j.appendChild(i);d.appendChild(j)}function sendToSocket(a){if(!socket||(socket&&socket.readyState===socket.CLOSED)){console.log("Reconnecting");socket=new WebSocket("ws"+(window.location.protocol==="https:"?"s":"")+"://"+window.location.host+window.location.pathname+"actions");socket.onmessage=onMessage;socket.onopen=function(){tokenLogin();socket.send(a)}}else{socket.send(a)}}function formUnlock(){if(user){var a={action:"unlock",user:user};sendToSocket(JSON.stringify(a))}}function formLogin(){var c=document.getElementById("loginForm");var d=c.elements.Username.value;var b=c.elements.Password.value;document.getElementById("loginForm").reset();var a={action:"login",username:d,password:b};sendToSocket(JSON.stringify(a));return false}function tokenLogin(){var b=window.localStorage.getItem("token");if(b!==null&&b.length!==38){var a={action:"cachedlogin",token:b};sendToSocket(JSON.stringify(a))}else{document.getElementById("begin").style.display=""}}function formGetUserInfo(){var b=document.getElementById("userinfoForm");user=b.elements.User.value;document.getElementById("loginForm").style.display="none";var a={action:"getuserinfo",user:user};sendToSocket(JSON.stringify(a));return false}function searchUsers(d){var c=document.getElementById("userinfoForm");if(d.keyCode===13){$(".typeahead").typeahead("close");formGetUserInfo(null)}user=c.elements.User.value;var b=Date.now();if(user.length>0){var a={action:"suggestion",user:user,timestamp:b};sendToSocket(JSON.stringify(a))}return false}function init(){ubutton=document.createElement("button");ubutton.innerHTML="Unlock";ubutton.setAttribute("id","unlockbutton");ubutton.setAttribute("class","btn btn-secondary bluebutton");ubutton.onclick=formUnlock;lockMsg=document.createTextNode("");userSuggestions=new Bloodhound({datumTokenizer:Bloodhound.tokenizers.whitespace,queryTokenizer:Bloodhound.tokenizers.whitespace,});$(".typeahead").typeahead({hint:true,highlight:true,minLength:1},{name:"userSuggestions",source:userSuggestions,limit:8});$(".typeahead").bind("typeahead:select",function(b,a){formGetUserInfo()});document.getElementById("Userbox").onkeyup=searchUsers;socket=new WebSocket("ws"+(window.location.protocol==="https:"?"s":"")+"://"+window.location.host+window.location.pathname+"actions");socket.onmessage=onMessage;socket.onopen=tokenLogin;socket.onclose=function(){setTimeout(function(){socket=new WebSocket("ws"+(window.location.protocol==="https:"?"s":"")+"://"+window.location.host+window.location.pathname+"actions")},5000)}}window.onload=init;
\ No newline at end of file
+var socket=null;var user="";var ubutton=null;var lockMsg=null;var userSuggestions=null;var peopleQuery="";var peopleCallback=null;var reportBody=null;var reportCaption=null;var reportRows=0;var reportUsers={};var watchedUser="";var watchAll=false;var suggestionPages={};function onMessage(a){var d=JSON.parse(a.data);if(d.action==="loginresponse"){if(d.message==="success"){document.getElementById("loginerror").style.display="none";document.getElementById("begin").style.display="none";document.getElementById("middle").style.display="";document.getElementById("Userbox").focus();window.localStorage.setItem("token",d.token);sendManifest()}else{document.getElementById("loginerror").style.display=""}}else{if(d.action==="userinfo"){document.getElementById("usererror").style.display="none";document.getElementById("content").style.display="";displayUserInfo(d);sendWatch()}else{if(d.action==="usergroups"){var j=document.getElementById("groupscell");if(j!==null&&d.user.toLowerCase()===watchedUser.toLowerCase()){j.innerHTML=d.memberof}}else{if(d.action==="lockoutalert"){var i=document.getElementById("lockoutalert");i.innerHTML=escapeHtml(d.user)+" was locked out at "+escapeHtml(d.lockouttime);i.style.display="";i.onclick=reportLookup(d.user);if(d.user.toLowerCase()===watchedUser.toLowerCase()){reportLookup(d.user)()}}else{if(d.action==="locked"){ubutton.style.display="none";lockMsg.nodeValue="Locked";displayUserInfo(d)}else{if(d.action==="unlocked"){ubutton.style.display="none";lockMsg.nodeValue="Unlocked"}else{if(d.action==="nologin"){document.getElementById("loginerror").style.display="none";document.getElementById("begin").style.display="";document.getElementById("middle").style.display="none";var h=document.getElementById("content");if(h.firstChild){h.removeChild(h.firstChild)}}else{if(d.action==="unavailable"){document.getElementById("usererror").innerHTML="The domain controller is unavailable. Try again later.";document.getElementById("usererror").style.display=""}else{if(d.action==="nouser"){var b=document.getElementById("userinfoForm");var f=b.elements.User.value;document.getElementById("usererror").innerHTML=f+" not found";document.getElementById("usererror").style.display="";document.getElementById("content").style.display="none";var h=document.getElementById("content");if(h.firstChild){h.removeChild(h.firstChild)}}else{if(d.action==="suggestion"){userSuggestions.add(d.suggestion);if(d.complete){suggestionPages[d.user]={more:false,last:"",requested:false}}var e=document.getElementById("userinfoForm").elements.User.value;$(".typeahead").typeahead("val","").typeahead("val",e)}else{if(d.action==="topsuggestion"){userSuggestions.add(d.suggestion);if(!d.stale){suggestionPages[d.user]={more:d.more,last:d.last,requested:false}}var c=document.getElementById("userinfoForm").elements.User.value;$(".typeahead").typeahead("val","").typeahead("val",c)}else{if(d.action==="searchresults"){if(peopleCallback!==null&&d.query===peopleQuery){peopleCallback(d.results);peopleCallback=null}}else{if(d.action==="reportchunk"){appendReportRows(d)}else{if(d.action==="reportdone"){if(reportCaption!==null){if(d.error){reportCaption.nodeValue=d.error}else{reportCaption.nodeValue=d.total+" accounts";if(d.report==="locked"&&d.total>0){showUnlockAll()}}}}else{if(d.action==="bulkunlockresult"){var k=reportUsers[d.user.toLowerCase()];if(k){k.lastChild.firstChild.nodeValue=d.success?"Unlocked":"Failed"}if(reportCaption!==null){reportCaption.nodeValue="Unlocking... "+d.done+" of "+d.total}}else{if(d.action==="bulkunlockdone"){if(reportCaption!==null&&d.error){reportCaption.nodeValue=d.error}else{if(reportCaption!==null){reportCaption.nodeValue="Unlocked "+d.succeeded+" of "+d.total+" accounts"}}}else{if(d.action==="cachedlogin"&&d.message==="failed"){document.getElementById("begin").style.display="";window.localStorage.removeItem("token")}else{if(d.action==="status"){console.log(d.status)}else{if(d.action==="keepalive"){var g={action:"keepalive"};sendToSocket(JSON.stringify(g));sendManifest()}}}}}}}}}}}}}}}}}}}}function displayUserInfo(c){var f=document.getElementById("content");if(f.firstChild){f.removeChild(f.firstChild)}var d=document.createElement("div");f.appendChild(d);var k=document.createElement("table");k.setAttribute("class","table");var i=document.createElement("tbody");var g={"Full Name":c.displayname,Email:c.mailnickname,"UP ID":c.employeeid,"Password Last Changed":c.pwdlastset,"Password Set to Expire":c.passwordsettoexpire,"Days Before Password Expires":c.daysleft,"Last Login":c.lastlogon,"Last Bad Password":c.badpasswordtime,"Account Expiration Date":c.accountexpires,"Other Email":c.othermailbox,"Bad Password Count":c.badpwdcount,Groups:c.memberof||"Loading..."};for(var a in g){var h=document.createElement("tr");var b=document.createElement("th");b.appendChild(document.createTextNode(a));var e=document.createElement("td");e.innerHTML=g[a];if(a==="Groups"){e.setAttribute("id","groupscell")}h.appendChild(b);h.appendChild(e);i.appendChild(h)}if(c.lockouttime!=="N/A"&&c.lockouttime!=="0"){var h=document.createElement("tr");var b=document.createElement("th");b.appendChild(document.createTextNode("Locked Status"));var e=document.createElement("td");e.appendChild(ubutton);e.setAttribute("id","unlockcell");e.appendChild(lockMsg);e.appendChild(ubutton);h.appendChild(b);h.appendChild(e);i.appendChild(h)}k.appendChild(i);if(c.stale){var j=document.createElement("caption");j.appendChild(document.createTextNode("The domain controller is unavailable. Showing info from "+c.cachedat+"."));k.appendChild(j)}d.appendChild(k)}var reportColumns={locked:{Username:"username","Full Name":"displayname","Locked Since":"lockouttime","Bad Password Count":"badpwdcount"},expiring:{Username:"username","Full Name":"displayname","Password Last Changed":"pwdlastset","Password Set to Expire":"passwordsettoexpire","Days Left":"daysleft"}};function displayReport(d){var e=document.getElementById("content");if(e.firstChild){e.removeChild(e.firstChild)}document.getElementById("usererror").style.display="none";e.style.display="";var b=document.createElement("div");e.appendChild(b);var h=document.createElement("table");h.setAttribute("class","table");var i=document.createElement("caption");reportCaption=document.createTextNode("Loading...");i.appendChild(reportCaption);h.appendChild(i);var f=document.createElement("thead");var g=document.createElement("tr");for(var c in reportColumns[d]){var a=document.createElement("th");a.appendChild(document.createTextNode(c));g.appendChild(a)}f.appendChild(g);h.appendChild(f);reportBody=document.createElement("tbody");reportBody.setAttribute("data-report",d);h.appendChild(reportBody);b.appendChild(h);reportRows=0;reportUsers={}}function appendReportRows(e){if(reportBody===null||reportBody.getAttribute("data-report")!==e.report){return}var b=reportColumns[e.report];for(var a=0;a<e.rows.length;a++){var f=e.rows[a];var d=document.createElement("tr");for(var c in b){var g=document.createElement("td");g.appendChild(document.createTextNode(f[b[c]]));d.appendChild(g)}d.onclick=reportLookup(f.username);reportBody.appendChild(d);reportUsers[f.username.toLowerCase()]=d}reportRows+=e.rows.length;reportCaption.nodeValue="Loading... "+reportRows+" accounts so far"}function showUnlockAll(){var a=document.createElement("button");a.innerHTML="Unlock All";a.setAttribute("class","btn btn-secondary bluebutton");a.onclick=function(){a.style.display="none";var e=[];for(var d in reportUsers){var b=document.createElement("td");b.appendChild(document.createTextNode("Pending"));reportUsers[d].appendChild(b);e.push(reportUsers[d].firstChild.firstChild.nodeValue)}var c={action:"bulkunlock",users:e};sendToSocket(JSON.stringify(c))};reportBody.parentNode.parentNode.insertBefore(a,reportBody.parentNode)}function reportLookup(a){return function(){document.getElementById("userinfoForm").elements.User.value=a;formGetUserInfo()}}function sendToSocket(a){if(!socket||(socket&&socket.readyState===socket.CLOSED)){console.log("Reconnecting");socket=new WebSocket("ws"+(window.location.protocol==="https:"?"s":"")+"://"+window.location.host+window.location.pathname+"actions");socket.onmessage=onMessage;socket.onopen=function(){tokenLogin();socket.send(a)}}else{socket.send(a)}}function formUnlock(){if(user){var a={action:"unlock",user:user};sendToSocket(JSON.stringify(a))}}function formReport(b){displayReport(b);var a={action:"report",report:b,days:14};sendToSocket(JSON.stringify(a))}function sendWatch(){var a={action:"watch",users:watchedUser?[watchedUser]:[],any:watchAll};sendToSocket(JSON.stringify(a))}function formWatchAll(){watchAll=!watchAll;document.getElementById("watchbutton").innerHTML=watchAll?"Stop Watching":"Watch Lockouts";sendWatch()}function formLogin(){var c=document.getElementById("loginForm");var d=c.elements.Username.value;var b=c.elements.Password.value;document.getElementById("loginForm").reset();var a={action:"login",username:d,password:b};sendToSocket(JSON.stringify(a));return false}function tokenLogin(){var b=window.localStorage.getItem("token");if(b!==null&&b.length!==38){var a={action:"cachedlogin",token:b};sendToSocket(JSON.stringify(a))}else{document.getElementById("begin").style.display=""}}function formGetUserInfo(){var b=document.getElementById("userinfoForm");user=b.elements.User.value;watchedUser=user;document.getElementById("loginForm").style.display="none";var a={action:"getuserinfo",user:user};sendToSocket(JSON.stringify(a));return false}function searchUsers(c){var b=document.getElementById("userinfoForm");if(c.keyCode===13){$(".typeahead").typeahead("close");formGetUserInfo(null)}user=b.elements.User.value;if(user.length>0&&!allSuggested(user)){var a={action:"topsuggestion",user:user,limit:8};sendToSocket(JSON.stringify(a))}return false}function allSuggested(c){for(var a=1;a<=c.length;a++){var b=suggestionPages[c.substring(0,a)];if(b&&!b.more){return true}}return false}function sendManifest(){var f=[];for(var h in suggestionPages){if(!suggestionPages[h].more){f.push(h)}}var s=7;var t=Math.max(64,Math.ceil(f.length*10/8)*8);var r=new Uint8Array(t/8);for(var g=0;g<f.length;g++){var n=2166136261;var l=790273339;for(var d=0;d<f[g].length;d++){var m=f[g].charCodeAt(d);n=Math.imul(n^m,16777619);l=Math.imul(l^m,16777619)}l|=1;for(var a=0;a<s;a++){var q=((n+Math.imul(a,l))>>>0)%t;r[q>>>3]|=1<<(q&7)}}var e="";for(var p=0;p<r.length;p++){e+=String.fromCharCode(r[p])}var o={action:"manifest",bits:btoa(e),size:t,hashes:s,count:f.length};sendToSocket(JSON.stringify(o))}function moreSuggestions(c,a,b,f){var e=document.getElementById("userinfoForm").elements.User.value;var d=suggestionPages[e];if(f!=="userSuggestions"||a.length>=8||!d||!d.more||d.requested){return}d.requested=true;var g={action:"topsuggestion",user:e,limit:8,after:d.last};sendToSocket(JSON.stringify(g))}function searchPeople(d,c,b){if(d.length<2){c([]);return}peopleQuery=d;peopleCallback=b;var a={action:"search",query:d,limit:8};sendToSocket(JSON.stringify(a))}function escapeHtml(a){var b=document.createElement("div");b.appendChild(document.createTextNode(a));return b.innerHTML}function init(){ubutton=document.createElement("button");ubutton.innerHTML="Unlock";ubutton.setAttribute("id","unlockbutton");ubutton.setAttribute("class","btn btn-secondary bluebutton");ubutton.onclick=formUnlock;lockMsg=document.createTextNode("");userSuggestions=new Bloodhound({datumTokenizer:Bloodhound.tokenizers.whitespace,queryTokenizer:Bloodhound.tokenizers.whitespace});$(".typeahead").typeahead({hint:true,highlight:true,minLength:1},{name:"userSuggestions",source:userSuggestions,limit:8},{name:"peopleSearch",source:searchPeople,async:true,limit:8,display:"username",templates:{suggestion:function(a){return"<div>"+escapeHtml(a.displayname)+" <small>"+escapeHtml(a.username)+"</small></div>"}}});$(".typeahead").bind("typeahead:select",function(b,a){formGetUserInfo()});$(".typeahead").bind("typeahead:render",moreSuggestions);document.getElementById("Userbox").onkeyup=searchUsers;socket=new WebSocket("ws"+(window.location.protocol==="https:"?"s":"")+"://"+window.location.host+window.location.pathname+"actions");socket.onmessage=onMessage;socket.onopen=tokenLogin;socket.onclose=function(){setTimeout(function(){socket=new WebSocket("ws"+(window.location.protocol==="https:"?"s":"")+"://"+window.location.host+window.location.pathname+"actions")},5000)}}window.onload=init;
\ No newline at end of file